@@ -0,0 +1,145 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetData;
+import com.project.excel_diff.model.SheetDifferences;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Phases of ExcelToolsService on a generated upload: extraction, comparison of all sheet pairs, styling and write
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DiffPhaseBenchmark {
+
+    @Param({"10000"})
+    private int rows;
+
+    @Param({"10"})
+    private int columns;
+
+    @Param({"2", "12", "52"})
+    private int sheets;
+
+    @Param({"0.01", "0.5"})
+    private double changeRatio;
+
+    @Param({"MIXED"})
+    private WorkbookGenerator.CellTypeMix cellTypeMix;
+
+    @Param({"1", "4"})
+    private int poolSize;
+
+    private byte[] upload;
+    private ExecutorService sheetComparisonExecutor;
+    private ExcelToolsService excelToolsService;
+    private Workbook workbook;
+    private List<SheetData> excelSheetsData;
+    private List<SheetDifferences> excelSheetsDifferences;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        upload = new WorkbookGenerator(rows, columns, sheets, changeRatio, cellTypeMix, 42L).generate();
+        sheetComparisonExecutor = Executors.newFixedThreadPool(poolSize);
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        DiffMetrics diffMetrics = new DiffMetrics(new SimpleMeterRegistry(), new DiffResultCache(excelToolsProperties));
+        excelToolsService = new ExcelToolsService(sheetComparisonExecutor, diffMetrics, excelToolsProperties);
+    }
+
+
+    // Styling changes the workbook, so every invocation starts from a freshly parsed and extracted one
+    @Setup(Level.Invocation)
+    public void parseWorkbook() throws Exception {
+        workbook = new XSSFWorkbook(new ByteArrayInputStream(upload));
+        excelSheetsData = excelToolsService.mapRowKeyValuesFromSheets(workbook);
+        excelSheetsDifferences = compareAllSheets();
+    }
+
+
+    @TearDown(Level.Invocation)
+    public void closeWorkbook() throws Exception {
+        workbook.close();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sheetComparisonExecutor.shutdown();
+    }
+
+
+    @Benchmark
+    public List<SheetData> extraction() throws Exception {
+        return excelToolsService.mapRowKeyValuesFromSheets(workbook);
+    }
+
+
+    @Benchmark
+    public List<SheetDifferences> comparison() throws Exception {
+        return compareAllSheets();
+    }
+
+
+    @Benchmark
+    public Workbook styling() throws Exception {
+        HighlightStyles highlightStyles = new HighlightStyles(workbook);
+        for (int sheetIndex = 1; sheetIndex < excelSheetsData.size(); sheetIndex++) {
+            excelToolsService.highlightDifferences(highlightStyles,
+                                                   workbook,
+                                                   sheetIndex,
+                                                   excelSheetsData.get(sheetIndex - 1),
+                                                   excelSheetsData.get(sheetIndex),
+                                                   excelSheetsDifferences.get(sheetIndex - 1));
+        }
+        return workbook;
+    }
+
+
+    @Benchmark
+    public void write() throws Exception {
+        workbook.write(OutputStream.nullOutputStream());
+    }
+
+
+    private List<SheetDifferences> compareAllSheets() throws Exception {
+        List<Future<SheetDifferences>> comparisons = new ArrayList<>();
+        for (int sheetIndex = 1; sheetIndex < excelSheetsData.size(); sheetIndex++) {
+            SheetData previousSheetData = excelSheetsData.get(sheetIndex - 1);
+            SheetData nextSheetData     = excelSheetsData.get(sheetIndex);
+            comparisons.add(sheetComparisonExecutor.submit(() -> excelToolsService.compareSheets(previousSheetData, nextSheetData)));
+        }
+        List<SheetDifferences> differences = new ArrayList<>();
+        for (Future<SheetDifferences> comparison : comparisons) {
+            differences.add(comparison.get());
+        }
+        return differences;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end diff of a generated upload by each engine, ExcelToolsService1 being the sequential reference
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DiffPipelineBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int rows;
+
+    @Param({"10"})
+    private int columns;
+
+    @Param({"2", "12"})
+    private int sheets;
+
+    @Param({"0.05"})
+    private double changeRatio;
+
+    @Param({"MIXED"})
+    private WorkbookGenerator.CellTypeMix cellTypeMix;
+
+    @Param({"4"})
+    private int poolSize;
+
+    private byte[] upload;
+    private MockMultipartFile file;
+    private ExecutorService sheetComparisonExecutor;
+    private ExcelToolsService excelToolsService;
+    private ExcelToolsService1 excelToolsService1;
+    private ExcelStreamingToolsService excelStreamingToolsService;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        upload = new WorkbookGenerator(rows, columns, sheets, changeRatio, cellTypeMix, 42L).generate();
+        file = new MockMultipartFile("file", "input.xlsx", null, upload);
+
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        DiffMetrics diffMetrics = new DiffMetrics(new SimpleMeterRegistry(), new DiffResultCache(excelToolsProperties));
+        sheetComparisonExecutor = Executors.newFixedThreadPool(poolSize);
+        excelToolsService = new ExcelToolsService(sheetComparisonExecutor, diffMetrics, excelToolsProperties);
+        excelToolsService1 = new ExcelToolsService1();
+        excelStreamingToolsService = new ExcelStreamingToolsService(excelToolsProperties, diffMetrics);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sheetComparisonExecutor.shutdown();
+    }
+
+
+    @Benchmark
+    public void excelToolsService() throws Exception {
+        excelToolsService.findDifferencesBetweenSheets(new ByteArrayInputStream(upload), SheetLayout.DEFAULT, OutputStream.nullOutputStream(), DiffProgressListener.NONE);
+    }
+
+
+    @Benchmark
+    public void excelToolsService1() throws Exception {
+        excelToolsService1.findDifferencesBetweenSheets(file);
+    }
+
+
+    @Benchmark
+    public void excelStreamingToolsService() throws Exception {
+        excelStreamingToolsService.findDifferencesBetweenSheets(file, OutputStream.nullOutputStream());
+    }
+
+}
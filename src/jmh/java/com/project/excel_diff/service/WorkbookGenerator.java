@@ -0,0 +1,129 @@
+package com.project.excel_diff.service;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Deterministic workbooks for benchmarks: every tab derives from the previous one with a ratio of changed,
+// added and removed rows, so the same parameters always give the same bytes.
+public class WorkbookGenerator {
+
+    public enum CellTypeMix {
+        STRINGS, // Every value is a string
+        NUMBERS, // Every value is a number
+        DATES,   // Every value is a date formatted cell
+        MIXED    // Strings, numbers, dates and booleans column after column
+    }
+
+    private final int rows;
+    private final int columns;
+    private final int sheets;
+    private final double changeRatio;
+    private final CellTypeMix cellTypeMix;
+    private final long seed;
+
+
+    public WorkbookGenerator(int rows, int columns, int sheets, double changeRatio, CellTypeMix cellTypeMix, long seed) {
+        this.rows = rows;
+        this.columns = columns;
+        this.sheets = sheets;
+        this.changeRatio = changeRatio;
+        this.cellTypeMix = cellTypeMix;
+        this.seed = seed;
+    }
+
+
+    public byte[] generate() throws Exception {
+        Random random = new Random(seed);
+        // Strings go to the shared string table like in workbooks saved by Excel
+        try (SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, false, true)) {
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+
+            List<Object[]> tabRows = new ArrayList<>();
+            for (int rowIndex = 0; rowIndex < rows; rowIndex++) {
+                tabRows.add(newRow("K" + rowIndex, random));
+            }
+            int nextKey = rows;
+
+            for (int sheetIndex = 0; sheetIndex < sheets; sheetIndex++) {
+                if (sheetIndex > 0) {
+                    // A tenth of the changes are removed rows, a tenth added rows, the rest changed values
+                    List<Object[]> nextTabRows = new ArrayList<>(tabRows.size());
+                    for (Object[] values : tabRows) {
+                        double draw = random.nextDouble();
+                        if (draw < changeRatio * 0.1) {
+                            continue;
+                        }
+                        Object[] nextValues = values.clone();
+                        if (draw < changeRatio) {
+                            int columnIndex = 1 + random.nextInt(columns - 1);
+                            nextValues[columnIndex] = newValue(columnIndex, random);
+                        }
+                        nextTabRows.add(nextValues);
+                        if (draw > 1 - changeRatio * 0.1) {
+                            nextTabRows.add(newRow("K" + nextKey++, random));
+                        }
+                    }
+                    tabRows = nextTabRows;
+                }
+                writeSheet(workbook.createSheet("tab" + (sheetIndex + 1)), tabRows, dateStyle);
+            }
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            workbook.write(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+
+    private Object[] newRow(String key, Random random) {
+        Object[] values = new Object[columns];
+        values[0] = key;
+        for (int columnIndex = 1; columnIndex < columns; columnIndex++) {
+            values[columnIndex] = newValue(columnIndex, random);
+        }
+        return values;
+    }
+
+
+    private Object newValue(int columnIndex, Random random) {
+        // Mixed columns cycle through strings, numbers, dates and booleans
+        int type = cellTypeMix != CellTypeMix.MIXED ? cellTypeMix.ordinal() : columnIndex % 4;
+        return switch (type) {
+            case 0 -> "value-" + random.nextInt(1000);
+            case 1 -> Math.round(random.nextDouble() * 100000) / 100.0;
+            case 2 -> LocalDateTime.of(2020, 1, 1, 0, 0).plusDays(random.nextInt(2000));
+            default -> random.nextBoolean();
+        };
+    }
+
+
+    private void writeSheet(Sheet sheet, List<Object[]> tabRows, CellStyle dateStyle) {
+        for (int rowIndex = 0; rowIndex < tabRows.size(); rowIndex++) {
+            Row row = sheet.createRow(rowIndex);
+            Object[] values = tabRows.get(rowIndex);
+            for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+                Object value = values[columnIndex];
+                if (value instanceof String text) {
+                    row.createCell(columnIndex).setCellValue(text);
+                } else if (value instanceof Double number) {
+                    row.createCell(columnIndex).setCellValue(number);
+                } else if (value instanceof LocalDateTime date) {
+                    row.createCell(columnIndex).setCellValue(date);
+                    row.getCell(columnIndex).setCellStyle(dateStyle);
+                } else if (value instanceof Boolean bool) {
+                    row.createCell(columnIndex).setCellValue(bool);
+                }
+            }
+        }
+    }
+
+}
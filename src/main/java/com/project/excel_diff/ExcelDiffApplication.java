@@ -2,8 +2,10 @@ package com.project.excel_diff;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class ExcelDiffApplication {
 
     public static void main(String[] args) {
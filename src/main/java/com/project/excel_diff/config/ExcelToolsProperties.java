@@ -0,0 +1,150 @@
+package com.project.excel_diff.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "excel-tools")
+public class ExcelToolsProperties {
+
+    private final Streaming streaming = new Streaming();
+    private final Comparison comparison = new Comparison();
+    private final Jobs jobs = new Jobs();
+    private final Cache cache = new Cache();
+    private final Spill spill = new Spill();
+    private final Admission admission = new Admission();
+    private final Snapshots snapshots = new Snapshots();
+    private final Csv csv = new Csv();
+
+
+    @Getter
+    @Setter
+    public static class Streaming {
+
+        // Uploads bigger than this are diffed by the streaming engine when no engine is requested, for the outputs
+        // and layouts both engines give the same result for
+        private DataSize thresholdSize = DataSize.ofMegabytes(20);
+
+        // Number of rows SXSSF keeps in memory before flushing them to its temporary file
+        private int rowAccessWindowSize = 100;
+    }
+
+
+    @Getter
+    @Setter
+    public static class Comparison {
+
+        // Threads comparing pairs of consecutive sheets, shared by all requests
+        private int poolSize = Runtime.getRuntime().availableProcessors();
+
+        // Numbers differing by at most this much are equal, e.g. 0.005 to ignore rounding at the third decimal
+        private double numericTolerance = 0;
+
+        // Dates differing by at most this much are equal
+        private Duration dateTolerance = Duration.ZERO;
+    }
+
+
+    @Getter
+    @Setter
+    public static class Jobs {
+
+        // Diff jobs running at the same time
+        private int poolSize = 2;
+
+        // Diff jobs waiting for a thread, new jobs are rejected once it is full
+        private int queueCapacity = 20;
+
+        // Local directory holding uploads of queued jobs and results of finished jobs
+        private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "excel-diff-jobs");
+
+        // Time a finished job and its result are kept before being cleaned up
+        private Duration timeToLive = Duration.ofHours(1);
+    }
+
+
+    @Getter
+    @Setter
+    public static class Cache {
+
+        private boolean enabled = true;
+
+        // Total size of results kept in memory, least recently used results are evicted beyond it
+        private DataSize maxSize = DataSize.ofMegabytes(256);
+
+        // Results bigger than this are not cached
+        private DataSize maxEntrySize = DataSize.ofMegabytes(32);
+
+        private Duration timeToLive = Duration.ofHours(12);
+
+        // Local directory receiving results evicted from memory, none when not set
+        private Path spillDirectory;
+
+        // Total size of results kept in the spill directory
+        private DataSize maxSpillSize = DataSize.ofGigabytes(2);
+    }
+
+
+    @Getter
+    @Setter
+    public static class Spill {
+
+        // Rows a single diff of the streaming engine or of two files may hold in memory, beyond it rows are
+        // partitioned by key hash in local files and compared partition after partition
+        private DataSize memoryBudget = DataSize.ofMegabytes(256);
+
+        // Number of partitions rows are split into once they exceed the memory budget
+        private int partitionCount = 64;
+
+        // Local directory receiving partitions
+        private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "excel-diff-spill");
+    }
+
+
+    @Getter
+    @Setter
+    public static class Admission {
+
+        // Diffs running at the same time, across requests and jobs
+        private int maxConcurrentDiffs = Runtime.getRuntime().availableProcessors();
+
+        // Heap the running diffs may use together, each diff reserving an estimate based on the size of its upload
+        private DataSize memoryBudget = DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 2);
+
+        // Heap used per byte of upload by a diff held in memory, xlsx files being zipped XML
+        private int memoryPerUploadByte = 30;
+
+        // Time a diff request waits for a running diff to end before being rejected
+        private Duration queueTimeout = Duration.ofSeconds(30);
+    }
+
+
+    @Getter
+    @Setter
+    public static class Snapshots {
+
+        // Local directory holding the stored sheet snapshots, it should outlive restarts
+        private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "excel-diff-snapshots");
+    }
+
+
+    @Getter
+    @Setter
+    public static class Csv {
+
+        // CSV files are split in chunks of about this size, ending on a row boundary, and parsed in parallel on the
+        // comparison threads
+        private DataSize chunkSize = DataSize.ofMegabytes(4);
+
+        // Chunks a CSV reader holds at once, the one being read and those parsed ahead of it, reserved by the
+        // admission of the diff. At least two chunks are held.
+        private DataSize readAhead = DataSize.ofMegabytes(8);
+    }
+
+}
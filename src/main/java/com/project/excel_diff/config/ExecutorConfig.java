@@ -0,0 +1,37 @@
+package com.project.excel_diff.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+@EnableScheduling
+public class ExecutorConfig {
+
+    // Platform threads: comparisons are CPU bound, unlike the virtual request threads waiting on uploads and clients
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService sheetComparisonExecutor(ExcelToolsProperties excelToolsProperties) {
+        return Executors.newFixedThreadPool(excelToolsProperties.getComparison().getPoolSize(),
+                                            new CustomizableThreadFactory("sheet-comparison-"));
+    }
+
+
+    @Bean(destroyMethod = "shutdown")
+    public ThreadPoolExecutor diffJobExecutor(ExcelToolsProperties excelToolsProperties) {
+        ExcelToolsProperties.Jobs jobs = excelToolsProperties.getJobs();
+        // Bounded queue without caller-runs fallback: a full queue rejects the job instead of running it on the request thread
+        return new ThreadPoolExecutor(jobs.getPoolSize(), jobs.getPoolSize(),
+                                      0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(jobs.getQueueCapacity()),
+                                      new CustomizableThreadFactory("diff-job-"),
+                                      new ThreadPoolExecutor.AbortPolicy());
+    }
+
+}
@@ -1,18 +1,52 @@
 package com.project.excel_diff.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffJob;
+import com.project.excel_diff.model.DiffJobStatus;
+import com.project.excel_diff.model.DiffOptions;
+import com.project.excel_diff.model.DiffOutput;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.SheetSnapshot;
+import com.project.excel_diff.service.DiffAdmission;
+import com.project.excel_diff.service.DiffJobService;
+import com.project.excel_diff.service.DiffRecordWriter;
+import com.project.excel_diff.service.DiffResultCache;
+import com.project.excel_diff.service.ExcelJoinToolsService;
+import com.project.excel_diff.service.ExcelSnapshotToolsService;
+import com.project.excel_diff.service.ExcelStreamingToolsService;
 import com.project.excel_diff.service.ExcelToolsService;
-import org.springframework.core.io.InputStreamResource;
+import com.project.excel_diff.service.SheetSnapshotStore;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.util.CellReference;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 import lombok.AllArgsConstructor;
 
@@ -22,25 +56,333 @@ import lombok.AllArgsConstructor;
 @AllArgsConstructor
 public class ExcelToolController {
 
+    private static final MediaType XLSX_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+
     private final ExcelToolsService excelToolsService;
+    private final ExcelStreamingToolsService excelStreamingToolsService;
+    private final ExcelJoinToolsService excelJoinToolsService;
+    private final ExcelSnapshotToolsService excelSnapshotToolsService;
+    private final SheetSnapshotStore sheetSnapshotStore;
+    private final DiffJobService diffJobService;
+    private final DiffResultCache diffResultCache;
+    private final DiffAdmission diffAdmission;
+    private final ExcelToolsProperties excelToolsProperties;
+    private final ObjectMapper objectMapper;
 
 
     @PostMapping("/differences")
-    public ResponseEntity<InputStreamResource> getExcelSheetsDifferences(@RequestParam("file") MultipartFile file) throws Exception {
+    public ResponseEntity<StreamingResponseBody> getExcelSheetsDifferences(@RequestParam("file") MultipartFile file,
+                                                                           @RequestParam(value = "engine", required = false) DiffEngine engine,
+                                                                           @RequestParam(value = "output", defaultValue = "XLSX") DiffOutput output,
+                                                                           @RequestParam(value = "keyColumns", required = false) String keyColumns,
+                                                                           @RequestParam(value = "headerRows", defaultValue = "0") int headerRows,
+                                                                           @RequestParam(value = "ignoredColumns", required = false) String ignoredColumns) throws Exception {
+        SheetLayout layout = sheetLayout(keyColumns, headerRows, ignoredColumns);
+        DiffOptions options = new DiffOptions(selectEngine(file, engine, output, layout), output, layout);
+        DiffResultCache.CacheKey cacheKey;
+        DiffAdmission.Permit permit = null;
         try {
-            ByteArrayOutputStream byteArrayOutputStream = excelToolsService.findDifferencesBetweenSheets(file);
+            // Same upload with the same options as a previous request: its result is sent again without waiting
+            // for a slot, only diffs to compute are admitted
+            cacheKey = diffResultCache.isEnabled() ? diffResultCache.keyOf(file, options) : null;
+            if (cacheKey == null || !diffResultCache.contains(cacheKey)) {
+                permit = diffAdmission.admit(file.getSize(), options.engine());
+            }
+        } catch (RejectedExecutionException e) {
+            // Too many diffs running, the client should retry later
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        } catch (Exception e) {
+            throw new Exception("Exception from getExcelSheetsDifferences " + e.getMessage());
+        }
+
+        // The workbook is written straight to the response instead of being buffered in memory first
+        DiffAdmission.Permit admittedPermit = permit;
+        StreamingResponseBody responseBody = outputStream -> {
+            DiffAdmission.Permit diffPermit = admittedPermit;
+            try {
+                if (cacheKey == null) {
+                    writeDifferences(file, options, outputStream);
+                    return;
+                }
+                if (!diffResultCache.copyTo(cacheKey, outputStream)) {
+                    // The result was evicted since the lookup, the response being accepted the diff waits for a slot
+                    if (diffPermit == null) {
+                        diffPermit = diffAdmission.await(file.getSize(), options.engine());
+                    }
+                    DiffResultCache.Recorder recorder = diffResultCache.record(cacheKey, outputStream);
+                    writeDifferences(file, options, recorder);
+                    recorder.commit();
+                }
+            } catch (Exception e) {
+                throw new IOException("Exception from getExcelSheetsDifferences " + e.getMessage(), e);
+            } finally {
+                if (diffPermit != null) {
+                    diffPermit.close();
+                }
+            }
+        };
 
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-            HttpHeaders headers = new HttpHeaders();
+        HttpHeaders headers = new HttpHeaders();
+        if (output == DiffOutput.NDJSON) {
+            headers.add("Content-Disposition", "attachment; filename=output_diff.ndjson");
+        } else {
             headers.add("Content-Disposition", "attachment; filename=output_diff.xlsx");
+        }
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(output == DiffOutput.NDJSON ? MediaType.APPLICATION_NDJSON : XLSX_MEDIA_TYPE)
+                .body(responseBody);
+    }
+
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(new InputStreamResource(byteArrayInputStream));
+    // Compares a sheet of a baseline file with a sheet of a target file, each being an xlsx, CSV or gzipped CSV file
+    @PostMapping("/differences/files")
+    public ResponseEntity<StreamingResponseBody> getExcelFilesDifferences(@RequestParam("baseline") MultipartFile baselineFile,
+                                                                          @RequestParam("target") MultipartFile targetFile,
+                                                                          @RequestParam(value = "baselineSheet", required = false) String baselineSheet,
+                                                                          @RequestParam(value = "targetSheet", required = false) String targetSheet,
+                                                                          @RequestParam(value = "keyColumns", required = false) String keyColumns,
+                                                                          @RequestParam(value = "headerRows", defaultValue = "0") int headerRows,
+                                                                          @RequestParam(value = "ignoredColumns", required = false) String ignoredColumns) {
+        SheetLayout layout = sheetLayout(keyColumns, headerRows, ignoredColumns);
+        DiffAdmission.Permit permit;
+        try {
+            // Both files are read as streams, rows being held in memory up to the spill budget
+            permit = diffAdmission.admit(baselineFile.getSize() + targetFile.getSize(), DiffEngine.STREAMING);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+
+        StreamingResponseBody responseBody = outputStream -> {
+            try (permit; DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, outputStream)) {
+                excelJoinToolsService.findDifferencesBetweenFiles(baselineFile, baselineSheet, targetFile, targetSheet, layout, recordWriter);
+            } catch (Exception e) {
+                throw new IOException("Exception from getExcelFilesDifferences " + e.getMessage(), e);
+            }
+        };
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Disposition", "attachment; filename=output_diff.ndjson");
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(responseBody);
+    }
+
+
+    // Stores a sheet of an xlsx, CSV or gzipped CSV file, later sheets can be compared with it by id
+    @PostMapping("/snapshots")
+    public ResponseEntity<SheetSnapshot> createSheetSnapshot(@RequestParam("file") MultipartFile file,
+                                                             @RequestParam(value = "sheet", required = false) String sheet,
+                                                             @RequestParam(value = "keyColumns", required = false) String keyColumns,
+                                                             @RequestParam(value = "headerRows", defaultValue = "0") int headerRows,
+                                                             @RequestParam(value = "ignoredColumns", required = false) String ignoredColumns) throws Exception {
+        SheetLayout layout = sheetLayout(keyColumns, headerRows, ignoredColumns);
+        try (DiffAdmission.Permit permit = diffAdmission.admit(file.getSize(), DiffEngine.STREAMING)) {
+            SheetSnapshot snapshot = excelSnapshotToolsService.createSnapshot(file, sheet, layout);
+            return ResponseEntity.created(URI.create("/api/excelTools/snapshots/" + snapshot.snapshotId()))
+                    .body(snapshot);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
         } catch (Exception e) {
-            throw new Exception("Exception from getExcelSheetsDifferences " + e.getMessage());
+            throw new Exception("Exception from createSheetSnapshot " + e.getMessage());
+        }
+    }
+
+
+    @GetMapping("/snapshots/{snapshotId}")
+    public ResponseEntity<SheetSnapshot> getSheetSnapshot(@PathVariable("snapshotId") UUID snapshotId) throws Exception {
+        return ResponseEntity.of(sheetSnapshotStore.getSnapshot(snapshotId.toString()));
+    }
+
+
+    @DeleteMapping("/snapshots/{snapshotId}")
+    public ResponseEntity<Void> deleteSheetSnapshot(@PathVariable("snapshotId") UUID snapshotId) throws Exception {
+        return sheetSnapshotStore.delete(snapshotId.toString()) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+
+    // Compares a sheet with a stored snapshot. With keep, the sheet is stored as a new snapshot in the same pass,
+    // its id being returned in the Snapshot-Id header.
+    @PostMapping("/snapshots/{snapshotId}/differences")
+    public ResponseEntity<StreamingResponseBody> getSheetSnapshotDifferences(@PathVariable("snapshotId") UUID snapshotId,
+                                                                             @RequestParam("file") MultipartFile file,
+                                                                             @RequestParam(value = "sheet", required = false) String sheet,
+                                                                             @RequestParam(value = "keep", defaultValue = "false") boolean keep) throws Exception {
+        SheetSnapshot baseline = sheetSnapshotStore.getSnapshot(snapshotId.toString()).orElse(null);
+        if (baseline == null) {
+            return ResponseEntity.notFound().build();
+        }
+        DiffAdmission.Permit permit;
+        try {
+            permit = diffAdmission.admit(file.getSize(), DiffEngine.STREAMING);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Disposition", "attachment; filename=output_diff.ndjson");
+        StreamingResponseBody responseBody;
+        if (keep) {
+            // The Snapshot-Id header is only sent once the new snapshot is committed, so the diff runs before the
+            // response and its records are buffered in a local file, then streamed
+            String newSnapshotId = sheetSnapshotStore.newSnapshotId();
+            Path recordsFile = Files.createTempFile("excel-diff-", ".ndjson");
+            try (permit;
+                 OutputStream recordsOutput = Files.newOutputStream(recordsFile);
+                 DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, recordsOutput)) {
+                excelSnapshotToolsService.findDifferencesWithSnapshot(baseline, file, sheet, newSnapshotId, recordWriter);
+            } catch (Exception e) {
+                // A snapshot committed before the diff failed would never be returned
+                sheetSnapshotStore.delete(newSnapshotId);
+                Files.deleteIfExists(recordsFile);
+                throw new Exception("Exception from getSheetSnapshotDifferences " + e.getMessage());
+            }
+            headers.add("Snapshot-Id", newSnapshotId);
+            responseBody = outputStream -> {
+                try {
+                    Files.copy(recordsFile, outputStream);
+                } finally {
+                    Files.deleteIfExists(recordsFile);
+                }
+            };
+        } else {
+            responseBody = outputStream -> {
+                try (permit; DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, outputStream)) {
+                    excelSnapshotToolsService.findDifferencesWithSnapshot(baseline, file, sheet, null, recordWriter);
+                } catch (Exception e) {
+                    throw new IOException("Exception from getSheetSnapshotDifferences " + e.getMessage(), e);
+                }
+            };
+        }
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(responseBody);
+    }
+
+
+    @PostMapping("/differences/jobs")
+    public ResponseEntity<DiffJob> submitExcelSheetsDifferencesJob(@RequestParam("file") MultipartFile file,
+                                                                   @RequestParam(value = "engine", required = false) DiffEngine engine,
+                                                                   @RequestParam(value = "keyColumns", required = false) String keyColumns,
+                                                                   @RequestParam(value = "headerRows", defaultValue = "0") int headerRows,
+                                                                   @RequestParam(value = "ignoredColumns", required = false) String ignoredColumns) throws Exception {
+        SheetLayout layout = sheetLayout(keyColumns, headerRows, ignoredColumns);
+        try {
+            DiffJob job = diffJobService.submitJob(file, selectEngine(file, engine, DiffOutput.XLSX, layout), layout);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/excelTools/differences/jobs/" + job.getJobId()))
+                    .body(job);
+        } catch (RejectedExecutionException e) {
+            // Job queue is full, the client should retry later
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        } catch (Exception e) {
+            throw new Exception("Exception from submitExcelSheetsDifferencesJob " + e.getMessage());
+        }
+    }
+
+
+    @GetMapping("/differences/jobs/{jobId}")
+    public ResponseEntity<DiffJob> getExcelSheetsDifferencesJob(@PathVariable("jobId") String jobId) {
+        return ResponseEntity.of(diffJobService.getJob(jobId));
+    }
+
+
+    @GetMapping("/differences/jobs/{jobId}/result")
+    public ResponseEntity<Resource> getExcelSheetsDifferencesJobResult(@PathVariable("jobId") String jobId) {
+        DiffJob job = diffJobService.getJob(jobId).orElse(null);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (job.getStatus() != DiffJobStatus.DONE) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Disposition", "attachment; filename=output_diff.xlsx");
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(XLSX_MEDIA_TYPE)
+                .body(new FileSystemResource(job.getResultFile()));
+    }
+
+
+    private void writeDifferences(MultipartFile file, DiffOptions options, OutputStream outputStream) throws Exception {
+        if (options.output() == DiffOutput.NDJSON) {
+            try (DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, outputStream)) {
+                if (options.engine() == DiffEngine.STREAMING) {
+                    excelStreamingToolsService.findDifferencesAsRecords(file, options.layout(), recordWriter);
+                } else {
+                    excelToolsService.findDifferencesAsRecords(file, options.layout(), recordWriter);
+                }
+            }
+            return;
+        }
+        if (options.engine() == DiffEngine.STREAMING) {
+            excelStreamingToolsService.findDifferencesBetweenSheets(file, options.layout(), outputStream);
+        } else {
+            excelToolsService.findDifferencesBetweenSheets(file, options.layout(), outputStream);
+        }
+    }
+
+
+    // Invalid request options, the reason is sent back to the client
+    @ExceptionHandler(ResponseStatusException.class)
+    public ResponseEntity<String> handleInvalidRequest(ResponseStatusException e) {
+        return ResponseEntity.status(e.getStatusCode()).contentType(MediaType.TEXT_PLAIN).body(e.getReason());
+    }
+
+
+    // Columns are given by their letters, e.g. "A,C", the first column being the key by default. Invalid options
+    // are rejected with a 400 here instead of failing deep inside an engine.
+    private SheetLayout sheetLayout(String keyColumns, int headerRows, String ignoredColumns) {
+        if (headerRows < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "headerRows must be 0 or more, got " + headerRows);
+        }
+        SheetLayout layout = new SheetLayout(columnIndexes("keyColumns", keyColumns), headerRows, columnIndexes("ignoredColumns", ignoredColumns));
+        for (int keyColumn : layout.keyColumns()) {
+            if (layout.ignoredColumns().contains(keyColumn)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                                                  "Column " + CellReference.convertNumToColString(keyColumn) + " can't be both a key column and an ignored column");
+            }
+        }
+        return layout;
+    }
+
+
+    private List<Integer> columnIndexes(String parameter, String columns) {
+        List<Integer> columnIndexes = new ArrayList<>();
+        if (columns != null) {
+            for (String column : columns.split(",")) {
+                if (!column.isBlank()) {
+                    String letters = column.trim().toUpperCase();
+                    // Letters of a column of an xlsx sheet, from A to XFD
+                    if (!letters.matches("[A-Z]{1,3}")
+                        || CellReference.convertColStringToIndex(letters) >= SpreadsheetVersion.EXCEL2007.getMaxColumns()) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, parameter + " holds an invalid column: " + column.trim());
+                    }
+                    columnIndexes.add(CellReference.convertColStringToIndex(letters));
+                }
+            }
+        }
+        return columnIndexes;
+    }
+
+
+    // Without an explicit engine, large uploads go to the streaming engine to keep heap bounded, but only when it
+    // gives the same result: records, since its workbook doesn't keep the uploaded styles, and no header rows,
+    // since it doesn't match columns by name
+    private DiffEngine selectEngine(MultipartFile file, DiffEngine engine, DiffOutput output, SheetLayout layout) {
+        if (engine != null) {
+            return engine;
         }
+        boolean sameResult = output == DiffOutput.NDJSON && layout.headerRows() == 0;
+        return sameResult && file.getSize() > excelToolsProperties.getStreaming().getThresholdSize().toBytes() ? DiffEngine.STREAMING : DiffEngine.USERMODEL;
     }
 
 }
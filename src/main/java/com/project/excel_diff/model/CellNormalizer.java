@@ -0,0 +1,113 @@
+package com.project.excel_diff.model;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Arrays;
+
+// Typed values of the cells of a workbook. Whether a numeric cell holds a date depends on its style only, so it is
+// decided once per style index instead of parsing the format string of every cell. Numbers and dates (kept as Excel
+// serial numbers) are compared as doubles within a tolerance, strings are only built for output.
+// Filled while extracting the workbook, read-only afterwards.
+public class CellNormalizer {
+
+    private static final byte UNKNOWN_STYLE = 0;
+    private static final byte NUMBER_STYLE  = 1;
+    private static final byte DATE_STYLE    = 2;
+
+    private static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private final double numericTolerance;
+    private final double dateToleranceDays;
+    private byte[] styleKinds = new byte[64];
+    private boolean date1904;
+    private boolean date1904Known;
+
+
+    public CellNormalizer() {
+        this(0, Duration.ZERO);
+    }
+
+
+    public CellNormalizer(double numericTolerance, Duration dateTolerance) {
+        this.numericTolerance  = numericTolerance;
+        this.dateToleranceDays = dateTolerance.toMillis() / MILLIS_PER_DAY;
+    }
+
+
+    public boolean isDateFormatted(Cell cell) {
+        if (!isDateFormatted(cell.getCellStyle(), cell.getNumericCellValue())) {
+            return false;
+        }
+        if (!date1904Known) {
+            date1904      = cell.getSheet().getWorkbook() instanceof XSSFWorkbook workbook && workbook.isDate1904();
+            date1904Known = true;
+        }
+        return true;
+    }
+
+
+    // Same decision for a value read without the usermodel, e.g. by the streaming engine with the styles table
+    public boolean isDateFormatted(CellStyle style, double value) {
+        int styleIndex = style.getIndex() & 0xFFFF;
+        if (styleIndex >= styleKinds.length) {
+            styleKinds = Arrays.copyOf(styleKinds, Math.max(styleIndex + 1, styleKinds.length * 2));
+        }
+        if (styleKinds[styleIndex] == UNKNOWN_STYLE) {
+            styleKinds[styleIndex] = DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString()) ? DATE_STYLE : NUMBER_STYLE;
+        }
+        return styleKinds[styleIndex] == DATE_STYLE && DateUtil.isValidExcelDate(value);
+    }
+
+
+    // Date system of a workbook read without the usermodel, which can't be told from its cells
+    public void setDate1904(boolean date1904) {
+        this.date1904      = date1904;
+        this.date1904Known = true;
+    }
+
+
+    public boolean numbersEqual(double value, double otherValue) {
+        return value == otherValue || Math.abs(value - otherValue) <= numericTolerance;
+    }
+
+
+    public boolean datesEqual(double serialNumber, double otherSerialNumber) {
+        return serialNumber == otherSerialNumber || Math.abs(serialNumber - otherSerialNumber) <= dateToleranceDays;
+    }
+
+
+    public String formatNumber(double value) {
+        return value == (int) value ? String.valueOf((int) value) : String.valueOf(value);
+    }
+
+
+    public LocalDateTime toDateTime(double serialNumber) {
+        return DateUtil.getLocalDateTime(serialNumber, date1904, true);
+    }
+
+
+    // ISO date, with the time of day when there is one
+    public String formatDate(double serialNumber) {
+        LocalDateTime dateTime = toDateTime(serialNumber);
+        return dateTime.toLocalTime().equals(LocalTime.MIDNIGHT) ? dateTime.toLocalDate().toString() : dateTime.toString();
+    }
+
+
+    public String formatCell(Cell cell) {
+        return switch (cell.getCellType()) {
+            case STRING -> cell.getStringCellValue();
+            case NUMERIC -> isDateFormatted(cell) ? formatDate(cell.getNumericCellValue()) : formatNumber(cell.getNumericCellValue());
+            case BOOLEAN -> String.valueOf(cell.getBooleanCellValue());
+            case FORMULA -> cell.getCellFormula();
+            case BLANK -> "";
+            default -> cell.toString();
+        };
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.project.excel_diff.model;
+
+import java.util.List;
+
+// Columns of the next sheet matched with columns of the previous sheet, found once per pair of sheets. Columns only
+// found in the previous sheet were removed, columns only found in the next sheet were inserted, and matched columns
+// out of their order were moved. Cells are only compared between matched columns.
+public final class ColumnAlignment {
+
+    private final int[] previousColumns;
+    private final List<Integer> removedColumns;
+    private final List<Integer> insertedColumns;
+    private final List<Integer> movedColumns;
+    private final boolean identity;
+
+
+    // previousColumns holds the matched column of the previous sheet of each column of the next sheet, -1 for
+    // inserted columns. Columns beyond it are blank in both sheets.
+    public ColumnAlignment(int[] previousColumns, List<Integer> removedColumns, List<Integer> insertedColumns, List<Integer> movedColumns) {
+        this.previousColumns = previousColumns;
+        this.removedColumns  = List.copyOf(removedColumns);
+        this.insertedColumns = List.copyOf(insertedColumns);
+        this.movedColumns    = List.copyOf(movedColumns);
+
+        boolean identity = removedColumns.isEmpty() && insertedColumns.isEmpty() && movedColumns.isEmpty();
+        for (int nextColumn = 0; nextColumn < previousColumns.length && identity; nextColumn++) {
+            identity = previousColumns[nextColumn] == nextColumn;
+        }
+        this.identity = identity;
+    }
+
+
+    public static ColumnAlignment identity(int columnCount) {
+        int[] previousColumns = new int[columnCount];
+        for (int column = 0; column < columnCount; column++) {
+            previousColumns[column] = column;
+        }
+        return new ColumnAlignment(previousColumns, List.of(), List.of(), List.of());
+    }
+
+
+    public int columnCount() {
+        return previousColumns.length;
+    }
+
+
+    // Matched column of the previous sheet, or -1 for an inserted column
+    public int previousColumn(int nextColumn) {
+        return previousColumns[nextColumn];
+    }
+
+
+    // Columns of the previous sheet without a match in the next sheet
+    public List<Integer> removedColumns() {
+        return removedColumns;
+    }
+
+
+    // Columns of the next sheet without a match in the previous sheet
+    public List<Integer> insertedColumns() {
+        return insertedColumns;
+    }
+
+
+    // Columns of the next sheet matched out of order
+    public List<Integer> movedColumns() {
+        return movedColumns;
+    }
+
+
+    // Every column matches the column at the same index, rows can be compared position by position
+    public boolean isIdentity() {
+        return identity;
+    }
+
+}
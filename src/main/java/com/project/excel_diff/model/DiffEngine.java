@@ -0,0 +1,6 @@
+package com.project.excel_diff.model;
+
+public enum DiffEngine {
+    USERMODEL, // Whole workbook loaded through XSSFWorkbook, cells keep their type and style
+    STREAMING  // Sheets read through the SAX event API and written through SXSSFWorkbook
+}
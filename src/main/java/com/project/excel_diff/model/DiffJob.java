@@ -0,0 +1,40 @@
+package com.project.excel_diff.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+// State of an asynchronous diff, updated by the job thread and read by status polling
+@Getter
+@Setter
+public class DiffJob {
+
+    private final String jobId;
+    private final DiffEngine engine;
+    private final SheetLayout layout;
+    private final Instant createdAt = Instant.now();
+
+    private volatile DiffJobStatus status = DiffJobStatus.QUEUED;
+    private volatile int sheetsProcessed;
+    private volatile int sheetCount;
+    private volatile String error;
+    private volatile Instant finishedAt;
+
+    @JsonIgnore
+    private final Path uploadFile;
+
+    @JsonIgnore
+    private final Path resultFile;
+
+    public DiffJob(String jobId, DiffEngine engine, SheetLayout layout, Path uploadFile, Path resultFile) {
+        this.jobId = jobId;
+        this.engine = engine;
+        this.layout = layout;
+        this.uploadFile = uploadFile;
+        this.resultFile = resultFile;
+    }
+
+}
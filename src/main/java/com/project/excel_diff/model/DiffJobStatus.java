@@ -0,0 +1,8 @@
+package com.project.excel_diff.model;
+
+public enum DiffJobStatus {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED
+}
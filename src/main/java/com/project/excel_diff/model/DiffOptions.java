@@ -0,0 +1,5 @@
+package com.project.excel_diff.model;
+
+// Options changing the result of a diff, part of the result cache key
+public record DiffOptions(DiffEngine engine, DiffOutput output, SheetLayout layout) {
+}
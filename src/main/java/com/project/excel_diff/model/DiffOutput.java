@@ -0,0 +1,6 @@
+package com.project.excel_diff.model;
+
+public enum DiffOutput {
+    XLSX,  // Uploaded workbook with differences highlighted and labeled
+    NDJSON // One JSON record per difference, the workbook is neither styled nor written
+}
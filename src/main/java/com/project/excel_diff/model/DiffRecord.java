@@ -0,0 +1,67 @@
+package com.project.excel_diff.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+// A difference between two consecutive sheets: a row added or removed (no column), a changed cell, or a column
+// added, removed or moved (no key, a moved column having its previous column too).
+// A key found on several rows of a sheet is reported with that sheet and the 1-based numbers of the rows.
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record DiffRecord(String previousSheet,
+                         String nextSheet,
+                         DiffRecordType type,
+                         String key,
+                         String column,
+                         String oldValue,
+                         String newValue,
+                         String sheet,
+                         List<Integer> rows,
+                         String previousColumn) {
+
+    public enum DiffRecordType {
+        ADDED,
+        REMOVED,
+        CHANGED,
+        DUPLICATE,
+        COLUMN_ADDED,
+        COLUMN_REMOVED,
+        COLUMN_MOVED
+    }
+
+
+    public static DiffRecord added(String previousSheet, String nextSheet, String key) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.ADDED, key, null, null, null, null, null, null);
+    }
+
+
+    public static DiffRecord removed(String previousSheet, String nextSheet, String key) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.REMOVED, key, null, null, null, null, null, null);
+    }
+
+
+    public static DiffRecord changed(String previousSheet, String nextSheet, String key, String column, String oldValue, String newValue) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.CHANGED, key, column, oldValue, newValue, null, null, null);
+    }
+
+
+    public static DiffRecord duplicate(String sheet, String key, List<Integer> rows) {
+        return new DiffRecord(null, null, DiffRecordType.DUPLICATE, key, null, null, null, sheet, rows, null);
+    }
+
+
+    public static DiffRecord columnAdded(String previousSheet, String nextSheet, String column) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.COLUMN_ADDED, null, column, null, null, null, null, null);
+    }
+
+
+    public static DiffRecord columnRemoved(String previousSheet, String nextSheet, String previousColumn) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.COLUMN_REMOVED, null, null, null, null, null, null, previousColumn);
+    }
+
+
+    public static DiffRecord columnMoved(String previousSheet, String nextSheet, String previousColumn, String column) {
+        return new DiffRecord(previousSheet, nextSheet, DiffRecordType.COLUMN_MOVED, null, column, null, null, null, null, previousColumn);
+    }
+
+}
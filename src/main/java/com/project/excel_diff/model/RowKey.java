@@ -0,0 +1,40 @@
+package com.project.excel_diff.model;
+
+import java.util.Arrays;
+
+// Key of a row encoded once at extraction: the dictionary id of each key cell (-1 for a blank cell). Its hash is
+// computed up front, so index lookups never build or hash strings.
+public final class RowKey {
+
+    private final int[] valueIds;
+    private final int hash;
+
+
+    RowKey(int[] valueIds) {
+        this.valueIds = valueIds;
+        this.hash = Arrays.hashCode(valueIds);
+    }
+
+
+    int columnCount() {
+        return valueIds.length;
+    }
+
+
+    int valueId(int keyIndex) {
+        return valueIds[keyIndex];
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof RowKey rowKey && hash == rowKey.hash && Arrays.equals(valueIds, rowKey.valueIds));
+    }
+
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+}
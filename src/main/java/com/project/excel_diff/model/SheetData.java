@@ -0,0 +1,356 @@
+package com.project.excel_diff.model;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Values of a sheet keyed by the key columns of each row, and the rows of the same workbook under the same keys.
+// Values (every cell of a row, key and ignored columns being blank) are packed row after row in two primitive
+// arrays: a type tag and a 64-bit payload, which is the double bits of a number or of the serial number of a date,
+// 0 or 1 for a boolean, or a dictionary id of a string. Value indexes are column indexes.
+// A 64-bit hash of the values is kept per row so that identical rows can be skipped without comparing each value.
+public class SheetData {
+
+    public static final byte BLANK   = 0;
+    public static final byte STRING  = 1;
+    public static final byte NUMERIC = 2;
+    public static final byte DATE    = 3;
+    public static final byte BOOLEAN = 4;
+    public static final byte FORMULA = 5;
+
+    // Row hashes are also computed from stored rows by the snapshot engine, see combineRowHash
+    public static final long ROW_HASH_SEED = 0x27D4EB2F165667C5L;
+
+    private final ValueDictionary dictionary;
+    private final SheetLayout layout;
+    private final CellNormalizer normalizer;
+    private final Map<RowKey, Integer> rowPositionByKey = new LinkedHashMap<>();
+    private final Map<RowKey, Row> rowIndex = new HashMap<>();
+    private final Map<RowKey, List<Integer>> duplicateRowNums = new LinkedHashMap<>();
+    private final List<String> headers = new ArrayList<>();
+
+    private int rowCount;
+    private int columnCount;
+    private int[] rowOffsets = new int[64];
+    private long[] rowHashes = new long[64];
+    private long currentRowHash;
+    private int valueCount;
+    private byte[] valueTypes = new byte[1024];
+    private long[] valuePayloads = new long[1024];
+
+    // Type and payload of the last cell read by readCell
+    private byte cellType;
+    private long cellPayload;
+
+
+    public SheetData(ValueDictionary dictionary) {
+        this(dictionary, SheetLayout.DEFAULT);
+    }
+
+
+    public SheetData(ValueDictionary dictionary, SheetLayout layout) {
+        this(dictionary, layout, new CellNormalizer());
+    }
+
+
+    public SheetData(ValueDictionary dictionary, SheetLayout layout, CellNormalizer normalizer) {
+        this.dictionary = dictionary;
+        this.layout = layout;
+        this.normalizer = normalizer;
+    }
+
+
+    // Adds the values of a row under its key, returns false for header rows and rows without a key. Cells of the
+    // last header row are kept as column names.
+    public boolean addRow(Row row) {
+        if (row.getRowNum() < layout.headerRows()) {
+            if (row.getRowNum() == layout.headerRows() - 1) {
+                for (Cell cell : row) {
+                    while (headers.size() <= cell.getColumnIndex()) {
+                        headers.add("");
+                    }
+                    headers.set(cell.getColumnIndex(), normalizer.formatCell(cell).trim());
+                }
+            }
+            return false;
+        }
+        RowKey key = keyOf(row);
+        if (key == null) {
+            return false;
+        }
+
+        if (rowCount + 2 > rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, rowOffsets.length * 2);
+            rowHashes  = Arrays.copyOf(rowHashes, rowHashes.length * 2);
+        }
+        // The last row of a key is both compared and highlighted
+        rowPositionByKey.put(key, rowCount);
+        Row previousRow = rowIndex.put(key, row);
+        if (previousRow != null) {
+            // Only called on the second row of a key, the previous row then being the first one
+            duplicateRowNums.computeIfAbsent(key, duplicateKey -> new ArrayList<>(List.of(previousRow.getRowNum()))).add(row.getRowNum());
+        }
+        rowOffsets[rowCount] = valueCount;
+        rowHashes[rowCount] = ROW_HASH_SEED;
+        currentRowHash = ROW_HASH_SEED;
+        rowCount++;
+        rowOffsets[rowCount] = valueCount;
+
+        for (int columnIndex = 0; columnIndex < row.getLastCellNum(); columnIndex++) {
+            if (layout.isCompared(columnIndex)) {
+                readCell(row.getCell(columnIndex));
+                addValue(cellType, cellPayload);
+                if (cellType != BLANK) {
+                    columnCount = Math.max(columnCount, columnIndex + 1);
+                }
+            } else {
+                addValue(BLANK, 0L);
+            }
+        }
+        return true;
+    }
+
+
+    // Key cells are encoded as dictionary ids. Cells other than strings go through their displayed text, so that
+    // the number 1 and the string "1" are the same key, as they were when keys were compared as strings.
+    private RowKey keyOf(Row row) {
+        List<Integer> keyColumns = layout.keyColumns();
+        int[] valueIds = new int[keyColumns.size()];
+        boolean blank = true;
+        for (int keyIndex = 0; keyIndex < valueIds.length; keyIndex++) {
+            readCell(row.getCell(keyColumns.get(keyIndex)));
+            valueIds[keyIndex] = switch (cellType) {
+                case BLANK -> -1;
+                case STRING -> (int) cellPayload;
+                default -> dictionary.idOf(format(cellType, cellPayload));
+            };
+            blank &= valueIds[keyIndex] < 0;
+        }
+        return blank ? null : new RowKey(valueIds);
+    }
+
+
+    private void readCell(Cell cell) {
+        cellType    = BLANK;
+        cellPayload = 0L;
+        if (cell == null) {
+            return;
+        }
+        switch (cell.getCellType()) {
+            case STRING -> {
+                int id = dictionary.idOfStringCell(cell);
+                if (!dictionary.valueOf(id).isEmpty()) {
+                    cellType    = STRING;
+                    cellPayload = id;
+                }
+            }
+            case NUMERIC -> {
+                cellType    = normalizer.isDateFormatted(cell) ? DATE : NUMERIC;
+                cellPayload = Double.doubleToRawLongBits(cell.getNumericCellValue());
+            }
+            case BOOLEAN -> {
+                cellType    = BOOLEAN;
+                cellPayload = cell.getBooleanCellValue() ? 1L : 0L;
+            }
+            case FORMULA -> {
+                cellType    = FORMULA;
+                cellPayload = dictionary.idOf(cell.getCellFormula());
+            }
+            case BLANK -> {
+            }
+            default -> {
+                cellType    = STRING;
+                cellPayload = dictionary.idOf(cell.toString());
+            }
+        }
+    }
+
+
+    private void addValue(byte type, long payload) {
+        if (valueCount == valueTypes.length) {
+            valueTypes    = Arrays.copyOf(valueTypes, valueCount * 2);
+            valuePayloads = Arrays.copyOf(valuePayloads, valueCount * 2);
+        }
+        valueTypes[valueCount]    = type;
+        valuePayloads[valueCount] = payload;
+        valueCount++;
+        rowOffsets[rowCount] = valueCount;
+
+        // Trailing blanks are left out of the row hash, since missing values at the end of a row count as blank
+        currentRowHash = combineRowHash(currentRowHash, payload, type);
+        if (type != BLANK) {
+            rowHashes[rowCount - 1] = currentRowHash;
+        }
+    }
+
+
+    public SheetLayout layout() {
+        return layout;
+    }
+
+
+    public CellNormalizer normalizer() {
+        return normalizer;
+    }
+
+
+    public Set<RowKey> keys() {
+        return rowPositionByKey.keySet();
+    }
+
+
+    // Position of the row holding the values of a key, or -1 when the key is not in the sheet
+    public int rowPosition(RowKey key) {
+        Integer rowPosition = rowPositionByKey.get(key);
+        return rowPosition != null ? rowPosition : -1;
+    }
+
+
+    public Map<RowKey, Row> rowIndex() {
+        return rowIndex;
+    }
+
+
+    // Keys found on several rows of the sheet, with the 0-based numbers of these rows
+    public Map<RowKey, List<Integer>> duplicateRowNums() {
+        return duplicateRowNums;
+    }
+
+
+    // Text of a key as displayed in the differences, the values of a composite key being joined
+    public String keyAsString(RowKey key) {
+        if (key.columnCount() == 1) {
+            return dictionary.valueOf(key.valueId(0));
+        }
+        List<String> keyValues = new ArrayList<>();
+        for (int keyIndex = 0; keyIndex < key.columnCount(); keyIndex++) {
+            keyValues.add(key.valueId(keyIndex) < 0 ? "" : dictionary.valueOf(key.valueId(keyIndex)));
+        }
+        return SheetLayout.joinKeyValues(keyValues);
+    }
+
+
+    // Rows with different hashes may still be equal (e.g. the string "1" and the number 1, or numbers within the
+    // tolerance), but rows with equal hashes are considered equal
+    public long rowHash(int rowPosition) {
+        return rowHashes[rowPosition];
+    }
+
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+
+    // Number of columns holding compared values, compared columns beyond it are blank in every row
+    public int columnCount() {
+        return columnCount;
+    }
+
+
+    // Name of a column in the last header row, empty when there is none
+    public String header(int columnIndex) {
+        return columnIndex < headers.size() ? headers.get(columnIndex) : "";
+    }
+
+
+    public int totalValueCount() {
+        return valueCount;
+    }
+
+
+    public int valueCount(int rowPosition) {
+        return rowOffsets[rowPosition + 1] - rowOffsets[rowPosition];
+    }
+
+
+    // Compares a value of two rows without building strings, values missing at the end of a row are blank
+    public boolean valueEquals(int rowPosition, SheetData other, int otherRowPosition, int valueIndex) {
+        return this.valueEquals(rowPosition, valueIndex, other, otherRowPosition, valueIndex);
+    }
+
+
+    // Same comparison between values of different columns, for columns that moved between both sheets
+    public boolean valueEquals(int rowPosition, int valueIndex, SheetData other, int otherRowPosition, int otherValueIndex) {
+        byte type      = this.valueType(rowPosition, valueIndex);
+        byte otherType = other.valueType(otherRowPosition, otherValueIndex);
+        if (type == otherType) {
+            long payload      = this.valuePayload(rowPosition, valueIndex);
+            long otherPayload = other.valuePayload(otherRowPosition, otherValueIndex);
+            return switch (type) {
+                case BLANK -> true;
+                case NUMERIC -> normalizer.numbersEqual(Double.longBitsToDouble(payload), Double.longBitsToDouble(otherPayload));
+                case DATE -> normalizer.datesEqual(Double.longBitsToDouble(payload), Double.longBitsToDouble(otherPayload));
+                default -> payload == otherPayload;
+            };
+        }
+        // Different types can still display the same text, e.g. the string "1" and the number 1
+        return this.valueAsString(rowPosition, valueIndex).equals(other.valueAsString(otherRowPosition, otherValueIndex));
+    }
+
+
+    public boolean isBlank(int rowPosition, int valueIndex) {
+        return valueType(rowPosition, valueIndex) == BLANK;
+    }
+
+
+    // Text of a value as displayed in the differences, only built for values that are reported
+    public String valueAsString(int rowPosition, int valueIndex) {
+        return format(valueType(rowPosition, valueIndex), valuePayload(rowPosition, valueIndex));
+    }
+
+
+    private String format(byte type, long payload) {
+        return switch (type) {
+            case STRING, FORMULA -> dictionary.valueOf((int) payload);
+            case NUMERIC -> normalizer.formatNumber(Double.longBitsToDouble(payload));
+            case DATE -> normalizer.formatDate(Double.longBitsToDouble(payload));
+            case BOOLEAN -> String.valueOf(payload == 1L);
+            default -> "";
+        };
+    }
+
+
+    public List<String> rowValuesAsStrings(int rowPosition) {
+        List<String> values = new ArrayList<>();
+        for (int valueIndex = 0; valueIndex < valueCount(rowPosition); valueIndex++) {
+            values.add(valueAsString(rowPosition, valueIndex));
+        }
+        return values;
+    }
+
+
+    // Adds a value to the hash of a row, the salt (its type or its column) telling apart equal values
+    public static long combineRowHash(long rowHash, long value, long salt) {
+        return mix(rowHash ^ mix(value + salt * 0x9E3779B97F4A7C15L));
+    }
+
+
+    // Finalizer of MurmurHash3, spreads every input bit over the 64 bits of the result
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+
+    private byte valueType(int rowPosition, int valueIndex) {
+        return valueIndex < valueCount(rowPosition) ? valueTypes[rowOffsets[rowPosition] + valueIndex] : BLANK;
+    }
+
+
+    private long valuePayload(int rowPosition, int valueIndex) {
+        return valueIndex < valueCount(rowPosition) ? valuePayloads[rowOffsets[rowPosition] + valueIndex] : 0L;
+    }
+
+}
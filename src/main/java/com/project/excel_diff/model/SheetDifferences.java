@@ -0,0 +1,12 @@
+package com.project.excel_diff.model;
+
+import java.util.List;
+import java.util.Map;
+
+// Keys of the rows added to and removed from the next sheet, the changed column indexes (in the next sheet) of the
+// rows found in both, and the columns matched between both sheets
+public record SheetDifferences(List<RowKey> addedKeys,
+                               List<RowKey> removedKeys,
+                               Map<RowKey, List<Integer>> changedColumns,
+                               ColumnAlignment columnAlignment) {
+}
@@ -0,0 +1,60 @@
+package com.project.excel_diff.model;
+
+import java.util.List;
+
+// Columns identifying a row (one or several, e.g. account + date + currency), number of header rows left out of
+// the comparison, and columns whose changes are ignored. Column indexes are 0-based. Part of the diff options.
+public record SheetLayout(List<Integer> keyColumns, int headerRows, List<Integer> ignoredColumns) {
+
+    public static final SheetLayout DEFAULT = new SheetLayout(List.of(0), 0, List.of());
+
+    // Separates the values of composite keys built from formatted cells
+    private static final String KEY_SEPARATOR = " | ";
+
+
+    public SheetLayout {
+        if (keyColumns == null || keyColumns.isEmpty()) {
+            keyColumns = DEFAULT.keyColumns();
+        }
+        if (ignoredColumns == null) {
+            ignoredColumns = List.of();
+        }
+        keyColumns = List.copyOf(keyColumns);
+        ignoredColumns = List.copyOf(ignoredColumns);
+    }
+
+
+    // Key and ignored columns are never reported as changed
+    public boolean isCompared(int columnIndex) {
+        return !keyColumns.contains(columnIndex) && !ignoredColumns.contains(columnIndex);
+    }
+
+
+    // Key of a row of formatted cells (blank cells are null), or null when every key cell is blank
+    public String keyOf(String[] cells) {
+        if (keyColumns.size() == 1) {
+            int keyColumn = keyColumns.get(0);
+            return keyColumn < cells.length ? cells[keyColumn] : null;
+        }
+        StringBuilder key = new StringBuilder();
+        boolean blank = true;
+        for (int keyIndex = 0; keyIndex < keyColumns.size(); keyIndex++) {
+            int keyColumn = keyColumns.get(keyIndex);
+            String value = keyColumn < cells.length ? cells[keyColumn] : null;
+            if (keyIndex > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            if (value != null) {
+                key.append(value);
+                blank = false;
+            }
+        }
+        return blank ? null : key.toString();
+    }
+
+
+    public static String joinKeyValues(List<String> values) {
+        return String.join(KEY_SEPARATOR, values);
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.project.excel_diff.model;
+
+import java.time.Instant;
+
+// Stored rows of a sheet, used as the baseline of later diffs. Rows are keyed with the layout of the snapshot.
+public record SheetSnapshot(String snapshotId,
+                            String fileName,
+                            String sheetName,
+                            SheetLayout layout,
+                            int rowCount,
+                            Instant createdAt) {
+}
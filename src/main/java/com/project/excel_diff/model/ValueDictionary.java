@@ -0,0 +1,59 @@
+package com.project.excel_diff.model;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Distinct strings of a workbook, so that cells of every sheet hold an int id and equal strings share the same id.
+// Filled while extracting the workbook, read-only afterwards.
+public class ValueDictionary {
+
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> idByValue = new HashMap<>();
+    private int[] idBySharedStringIndex = new int[0];
+
+
+    public int idOf(String value) {
+        Integer id = idByValue.get(value);
+        if (id == null) {
+            id = values.size();
+            values.add(value);
+            idByValue.put(value, id);
+        }
+        return id;
+    }
+
+
+    // Shared strings are resolved once per index of the workbook's shared string table, not once per cell
+    public int idOfStringCell(Cell cell) {
+        if (cell instanceof XSSFCell xssfCell) {
+            CTCell ctCell = xssfCell.getCTCell();
+            if (ctCell.getT() == STCellType.S && ctCell.isSetV()) {
+                int sharedStringIndex = Integer.parseInt(ctCell.getV());
+                if (sharedStringIndex >= idBySharedStringIndex.length) {
+                    int previousLength = idBySharedStringIndex.length;
+                    idBySharedStringIndex = Arrays.copyOf(idBySharedStringIndex, Math.max(sharedStringIndex + 1, previousLength * 2));
+                    Arrays.fill(idBySharedStringIndex, previousLength, idBySharedStringIndex.length, -1);
+                }
+                if (idBySharedStringIndex[sharedStringIndex] < 0) {
+                    idBySharedStringIndex[sharedStringIndex] = idOf(cell.getStringCellValue());
+                }
+                return idBySharedStringIndex[sharedStringIndex];
+            }
+        }
+        return idOf(cell.getStringCellValue());
+    }
+
+
+    public String valueOf(int id) {
+        return values.get(id);
+    }
+
+}
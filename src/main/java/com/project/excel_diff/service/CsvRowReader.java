@@ -0,0 +1,285 @@
+package com.project.excel_diff.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Reads a comma separated file (RFC 4180): quoted values may hold commas, quotes doubled and line breaks.
+// The file is cut in chunks ending on a row boundary, found by a scan of the quotes and line breaks only, and the
+// chunks are parsed ahead of the caller on the comparison threads, within the read-ahead budget of SheetReaders.
+// Rows are still returned in the file order.
+class CsvRowReader implements RowReader {
+
+    private final String name;
+    private final ChunkSource chunkSource;
+    private final ExecutorService parserExecutor;
+    private final int chunksAhead;
+    private final Deque<Future<List<String[]>>> parsedChunks = new ArrayDeque<>();
+    private Iterator<String[]> currentRows = Collections.emptyIterator();
+    private boolean firstChunk = true;
+    private boolean lastChunkRead;
+    private int rowNum = -1;
+
+
+    // A plain file is memory mapped chunk after chunk, a gzip stream is inflated into heap chunks
+    static CsvRowReader mapped(Path file, String name, ExecutorService parserExecutor, int chunksAhead, int chunkSize) throws IOException {
+        return new CsvRowReader(name, new MappedChunkSource(FileChannel.open(file, StandardOpenOption.READ), Math.max(1, chunkSize)), parserExecutor, chunksAhead);
+    }
+
+
+    static CsvRowReader streamed(InputStream input, String name, ExecutorService parserExecutor, int chunksAhead, int chunkSize) {
+        return new CsvRowReader(name, new StreamChunkSource(input, Math.max(1, chunkSize)), parserExecutor, chunksAhead);
+    }
+
+
+    private CsvRowReader(String name, ChunkSource chunkSource, ExecutorService parserExecutor, int chunksAhead) {
+        this.name = name;
+        this.chunkSource = chunkSource;
+        this.parserExecutor = parserExecutor;
+        this.chunksAhead = Math.max(1, chunksAhead);
+    }
+
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+
+    @Override
+    public String[] next() throws IOException {
+        while (!currentRows.hasNext()) {
+            // Keep the parser threads busy with the next chunks while the rows of this one are read
+            while (!lastChunkRead && parsedChunks.size() < chunksAhead) {
+                ByteBuffer chunk = chunkSource.next();
+                if (chunk == null) {
+                    lastChunkRead = true;
+                } else {
+                    boolean skipByteOrderMark = firstChunk;
+                    parsedChunks.add(parserExecutor.submit(() -> parseRows(chunk, skipByteOrderMark)));
+                    firstChunk = false;
+                }
+            }
+            if (parsedChunks.isEmpty()) {
+                return null;
+            }
+            try {
+                currentRows = parsedChunks.poll().get().iterator();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Exception from next() " + e.getMessage(), e);
+            } catch (ExecutionException e) {
+                throw new IOException("Exception from next() " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        rowNum++;
+        return currentRows.next();
+    }
+
+
+    // Every line of the file is a row, blank lines included
+    @Override
+    public int rowNum() {
+        return rowNum;
+    }
+
+
+    // Cells of the rows of a chunk, read in place from the buffer, a mapped chunk never being copied to the heap.
+    // Delimiters are ASCII bytes, which never appear inside a multi-byte UTF-8 character, so values are cut on
+    // bytes and decoded once.
+    static List<String[]> parseRows(ByteBuffer chunk, boolean skipByteOrderMark) {
+        List<String[]> rows = new ArrayList<>();
+        List<String> currentCells = new ArrayList<>();
+        byte[] currentValue = new byte[64];
+        int valueLength = 0;
+        boolean quoted = false;
+        boolean rowStarted = false;
+
+        int end = chunk.limit();
+        // Skip the byte order mark some spreadsheet applications write at the start of the file
+        int start = chunk.position();
+        if (skipByteOrderMark && end - start >= 3 && chunk.get(start) == (byte) 0xEF && chunk.get(start + 1) == (byte) 0xBB && chunk.get(start + 2) == (byte) 0xBF) {
+            start += 3;
+        }
+        for (int index = start; index < end; index++) {
+            byte b = chunk.get(index);
+            rowStarted = true;
+            if (quoted) {
+                if (b == '"') {
+                    if (index + 1 < end && chunk.get(index + 1) == '"') {
+                        index++;
+                    } else {
+                        quoted = false;
+                        continue;
+                    }
+                }
+            } else if (b == '"') {
+                quoted = true;
+                continue;
+            } else if (b == ',') {
+                currentCells.add(valueLength == 0 ? null : new String(currentValue, 0, valueLength, StandardCharsets.UTF_8));
+                valueLength = 0;
+                continue;
+            } else if (b == '\n') {
+                currentCells.add(valueLength == 0 ? null : new String(currentValue, 0, valueLength, StandardCharsets.UTF_8));
+                valueLength = 0;
+                rows.add(currentCells.toArray(new String[0]));
+                currentCells.clear();
+                rowStarted = false;
+                continue;
+            } else if (b == '\r') {
+                continue;
+            }
+            if (valueLength == currentValue.length) {
+                currentValue = Arrays.copyOf(currentValue, valueLength * 2);
+            }
+            currentValue[valueLength++] = b;
+        }
+        // Last row of the file without a line break
+        if (rowStarted) {
+            currentCells.add(valueLength == 0 ? null : new String(currentValue, 0, valueLength, StandardCharsets.UTF_8));
+            rows.add(currentCells.toArray(new String[0]));
+        }
+        return rows;
+    }
+
+
+    // Length of the rows of the buffer ending with a line break outside of quotes, or -1 without such line break.
+    // Doubled quotes toggle the quoted state twice, so the state is right without decoding the values.
+    static int completeRowsLength(ByteBuffer buffer, int length) {
+        boolean quoted = false;
+        int completeRowsLength = -1;
+        for (int index = 0; index < length; index++) {
+            byte b = buffer.get(index);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                completeRowsLength = index + 1;
+            }
+        }
+        return completeRowsLength;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        // Chunks parsed ahead are not needed anymore, e.g. when the caller stops at the first unsorted key
+        for (Future<List<String[]>> parsedChunk : parsedChunks) {
+            parsedChunk.cancel(false);
+        }
+        parsedChunks.clear();
+        chunkSource.close();
+    }
+
+
+    // Successive chunks of the file, each one starting at the start of a row and ending at the end of a row
+    private interface ChunkSource extends Closeable {
+
+        // Next chunk, or null once the file is read
+        ByteBuffer next() throws IOException;
+
+    }
+
+
+    // Maps each chunk of the file instead of copying it through the heap, a chunk being extended until it holds
+    // a whole row
+    private static class MappedChunkSource implements ChunkSource {
+        private final FileChannel channel;
+        private final int chunkSize;
+        private final long size;
+        private long position;
+
+        private MappedChunkSource(FileChannel channel, int chunkSize) throws IOException {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.size = channel.size();
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            long remaining = size - position;
+            if (remaining == 0) {
+                return null;
+            }
+            int length = (int) Math.min(chunkSize, remaining);
+            while (true) {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int chunkLength = length == remaining ? length : completeRowsLength(window, length);
+                if (chunkLength > 0) {
+                    position += chunkLength;
+                    return window.slice(0, chunkLength);
+                }
+                if (length == Integer.MAX_VALUE) {
+                    throw new IOException("Row longer than " + Integer.MAX_VALUE + " bytes at offset " + position);
+                }
+                length = (int) Math.min(Math.min(2L * length, Integer.MAX_VALUE), remaining);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+
+    // Reads a stream which can't be mapped, e.g. an inflated gzip file, the end of a chunk after its last row
+    // being moved to the start of the next one
+    private static class StreamChunkSource implements ChunkSource {
+        private final InputStream input;
+        private byte[] buffer;
+        private int length;
+        private boolean endOfStream;
+
+        private StreamChunkSource(InputStream input, int chunkSize) {
+            this.input = input;
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            while (true) {
+                while (length < buffer.length && !endOfStream) {
+                    int read = input.read(buffer, length, buffer.length - length);
+                    if (read < 0) {
+                        endOfStream = true;
+                    } else {
+                        length += read;
+                    }
+                }
+                if (length == 0) {
+                    return null;
+                }
+                int chunkLength = endOfStream ? length : completeRowsLength(ByteBuffer.wrap(buffer), length);
+                if (chunkLength > 0) {
+                    byte[] chunk = Arrays.copyOf(buffer, chunkLength);
+                    System.arraycopy(buffer, chunkLength, buffer, 0, length - chunkLength);
+                    length -= chunkLength;
+                    return ByteBuffer.wrap(chunk);
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffEngine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounds the diffs running at the same time by CPU count and by an estimate of the heap they use. Request threads
+// being virtual, nothing else limits how many uploads are diffed at once, and a burst of large uploads would
+// thrash the GC or run out of heap. Diffs wait in arrival order for a slot and are rejected after a timeout.
+@Service
+public class DiffAdmission implements MeterBinder {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    // Heap of parsed CSV rows per byte of file: a String per cell and an array per row
+    private static final int PARSED_CSV_BYTES_PER_BYTE = 6;
+
+    private final ExcelToolsProperties excelToolsProperties;
+    private final Semaphore diffSlots;
+    private final Semaphore memoryMegabytes;
+    private final int memoryBudgetMegabytes;
+    private final AtomicInteger waitingDiffs = new AtomicInteger();
+    private final AtomicLong rejections = new AtomicLong();
+
+
+    public DiffAdmission(ExcelToolsProperties excelToolsProperties) {
+        ExcelToolsProperties.Admission admission = excelToolsProperties.getAdmission();
+        this.excelToolsProperties  = excelToolsProperties;
+        this.diffSlots             = new Semaphore(admission.getMaxConcurrentDiffs(), true);
+        this.memoryBudgetMegabytes = (int) Math.max(1, admission.getMemoryBudget().toMegabytes());
+        this.memoryMegabytes       = new Semaphore(memoryBudgetMegabytes, true);
+    }
+
+
+    // Waits up to the queue timeout for a slot, throws RejectedExecutionException when none was freed in time
+    public Permit admit(long uploadSize, DiffEngine engine) {
+        Permit permit = tryAdmit(uploadSize, engine, excelToolsProperties.getAdmission().getQueueTimeout());
+        if (permit == null) {
+            rejections.incrementAndGet();
+            throw new RejectedExecutionException("Too many diffs running, retry later");
+        }
+        return permit;
+    }
+
+
+    // Waits for a slot as long as needed, for diffs already accepted such as queued jobs
+    public Permit await(long uploadSize, DiffEngine engine) {
+        return tryAdmit(uploadSize, engine, null);
+    }
+
+
+    // Heap reserved by a diff: the usermodel engine holds the whole workbook, the streaming engine and the join of
+    // two files hold rows up to the spill memory budget, plus the CSV chunks parsed ahead by the readers of both
+    // files. A diff bigger than the whole budget runs alone.
+    int estimatedMegabytes(long uploadSize, DiffEngine engine) {
+        long estimatedBytes = uploadSize * excelToolsProperties.getAdmission().getMemoryPerUploadByte();
+        if (engine == DiffEngine.STREAMING) {
+            long readAheadBytes = 2 * SheetReaders.readAheadBytes(excelToolsProperties) * PARSED_CSV_BYTES_PER_BYTE;
+            estimatedBytes = Math.min(estimatedBytes, excelToolsProperties.getSpill().getMemoryBudget().toBytes() + readAheadBytes);
+        }
+        return (int) Math.min(memoryBudgetMegabytes, Math.max(1, estimatedBytes / MEGABYTE));
+    }
+
+
+    private Permit tryAdmit(long uploadSize, DiffEngine engine, Duration timeout) {
+        int megabytes = estimatedMegabytes(uploadSize, engine);
+        long deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+        waitingDiffs.incrementAndGet();
+        try {
+            if (!acquire(diffSlots, 1, timeout, deadline)) {
+                return null;
+            }
+            if (!acquire(memoryMegabytes, megabytes, timeout, deadline)) {
+                diffSlots.release();
+                return null;
+            }
+            return new Permit(megabytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a diff slot");
+        } finally {
+            waitingDiffs.decrementAndGet();
+        }
+    }
+
+
+    private static boolean acquire(Semaphore semaphore, int permits, Duration timeout, long deadline) throws InterruptedException {
+        if (timeout == null) {
+            semaphore.acquire(permits);
+            return true;
+        }
+        return semaphore.tryAcquire(permits, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        Gauge.builder("excel.diff.admission.running", diffSlots, slots -> excelToolsProperties.getAdmission().getMaxConcurrentDiffs() - slots.availablePermits())
+                .register(meterRegistry);
+        Gauge.builder("excel.diff.admission.waiting", waitingDiffs, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("excel.diff.admission.reserved.memory", memoryMegabytes, memory -> (memoryBudgetMegabytes - memory.availablePermits()) * MEGABYTE)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        FunctionCounter.builder("excel.diff.admission.rejections", rejections, AtomicLong::get).register(meterRegistry);
+    }
+
+
+    // Slot of a running diff, released when closed
+    public class Permit implements Closeable {
+        private final int megabytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int megabytes) {
+            this.megabytes = megabytes;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                memoryMegabytes.release(megabytes);
+                diffSlots.release();
+            }
+        }
+    }
+
+}
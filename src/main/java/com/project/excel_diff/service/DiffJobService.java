@@ -0,0 +1,127 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffJob;
+import com.project.excel_diff.model.DiffJobStatus;
+import com.project.excel_diff.model.SheetLayout;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Slf4j
+@Service
+@AllArgsConstructor
+public class DiffJobService {
+
+    private final ExcelToolsService excelToolsService;
+    private final ExcelStreamingToolsService excelStreamingToolsService;
+    private final ExcelToolsProperties excelToolsProperties;
+    private final DiffAdmission diffAdmission;
+
+    @Qualifier("diffJobExecutor")
+    private final ThreadPoolExecutor diffJobExecutor;
+
+    private final Map<String, DiffJob> jobs = new ConcurrentHashMap<>();
+
+
+    // Throws RejectedExecutionException when the job queue is full
+    public DiffJob submitJob(MultipartFile file, DiffEngine engine, SheetLayout layout) throws Exception {
+        Path jobsDirectory = Files.createDirectories(excelToolsProperties.getJobs().getDirectory());
+        String jobId = UUID.randomUUID().toString();
+        DiffJob job = new DiffJob(jobId, engine, layout, jobsDirectory.resolve(jobId + "-upload.xlsx"), jobsDirectory.resolve(jobId + "-result.xlsx"));
+
+        // The multipart upload is gone once the request ends, keep a copy for the job thread
+        try (InputStream inputStream = file.getInputStream()) {
+            Files.copy(inputStream, job.getUploadFile(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        jobs.put(jobId, job);
+        try {
+            diffJobExecutor.execute(() -> runJob(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(jobId);
+            Files.deleteIfExists(job.getUploadFile());
+            throw e;
+        }
+        return job;
+    }
+
+
+    public Optional<DiffJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+
+    @Scheduled(fixedDelayString = "${excel-tools.jobs.cleanup-interval:PT1M}")
+    public void removeExpiredJobs() {
+        Instant expiration = Instant.now().minus(excelToolsProperties.getJobs().getTimeToLive());
+        jobs.values().removeIf(job -> {
+            if (job.getFinishedAt() == null || job.getFinishedAt().isAfter(expiration)) {
+                return false;
+            }
+            deleteQuietly(job.getResultFile());
+            return true;
+        });
+    }
+
+
+    private void runJob(DiffJob job) {
+        job.setStatus(DiffJobStatus.RUNNING);
+        DiffProgressListener progressListener = (sheetsProcessed, sheetCount) -> {
+            job.setSheetsProcessed(sheetsProcessed);
+            job.setSheetCount(sheetCount);
+        };
+
+        try {
+            // A queued job waits for a slot instead of being rejected, it was already accepted
+            try (DiffAdmission.Permit permit = diffAdmission.await(Files.size(job.getUploadFile()), job.getEngine());
+                 OutputStream outputStream = Files.newOutputStream(job.getResultFile())) {
+                if (job.getEngine() == DiffEngine.STREAMING) {
+                    excelStreamingToolsService.findDifferencesBetweenSheets(job.getUploadFile(), job.getLayout(), outputStream, progressListener);
+                } else {
+                    try (InputStream inputStream = Files.newInputStream(job.getUploadFile())) {
+                        excelToolsService.findDifferencesBetweenSheets(inputStream, job.getLayout(), outputStream, progressListener);
+                    }
+                }
+            }
+            // Done only once the result is flushed and closed, a poller could otherwise download a truncated file
+            job.setStatus(DiffJobStatus.DONE);
+        } catch (Exception e) {
+            log.warn("Diff job {} failed", job.getJobId(), e);
+            job.setError(e.getMessage());
+            job.setStatus(DiffJobStatus.FAILED);
+            deleteQuietly(job.getResultFile());
+        } finally {
+            job.setFinishedAt(Instant.now());
+            deleteQuietly(job.getUploadFile());
+        }
+    }
+
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not delete {}", path, e);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.model.DiffEngine;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+
+// Micrometer meters of the diff pipeline, published on the actuator metrics endpoint
+@Service
+public class DiffMetrics {
+
+    public static final String PARSE         = "parse";
+    public static final String EXTRACTION    = "extraction";
+    public static final String COMPARISON    = "comparison";
+    public static final String STYLING       = "styling";
+    public static final String SERIALIZATION = "serialization";
+
+    private final MeterRegistry meterRegistry;
+
+
+    public DiffMetrics(MeterRegistry meterRegistry, DiffResultCache diffResultCache) {
+        this.meterRegistry = meterRegistry;
+
+        FunctionCounter.builder("excel.diff.cache", diffResultCache, DiffResultCache::getHits).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("excel.diff.cache", diffResultCache, DiffResultCache::getMisses).tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("excel.diff.cache", diffResultCache, DiffResultCache::getEvictions).tag("result", "eviction").register(meterRegistry);
+    }
+
+
+    // Records the time spent in a phase since phaseStart, and returns the start of the next phase
+    public long recordPhase(DiffEngine engine, String phase, long phaseStart) {
+        long phaseEnd = System.nanoTime();
+        recordPhaseDuration(engine, phase, phaseEnd - phaseStart);
+        return phaseEnd;
+    }
+
+
+    public void recordPhaseDuration(DiffEngine engine, String phase, long durationNanos) {
+        Timer.builder("excel.diff.phase")
+                .tag("engine", engine.name().toLowerCase())
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(Duration.ofNanos(durationNanos));
+    }
+
+
+    public void recordSize(DiffEngine engine, int sheets, long rows, long cells) {
+        summary("excel.diff.sheets", engine, null).record(sheets);
+        summary("excel.diff.rows", engine, null).record(rows);
+        summary("excel.diff.cells", engine, null).record(cells);
+    }
+
+
+    public void recordChanges(DiffEngine engine, long addedRows, long removedRows, long changedRows) {
+        meterRegistry.counter("excel.diff.changes", "engine", engine.name().toLowerCase(), "type", "added").increment(addedRows);
+        meterRegistry.counter("excel.diff.changes", "engine", engine.name().toLowerCase(), "type", "removed").increment(removedRows);
+        meterRegistry.counter("excel.diff.changes", "engine", engine.name().toLowerCase(), "type", "changed").increment(changedRows);
+    }
+
+
+    // The max of these summaries gives the peak bytes read and written by a single diff
+    public void recordBytes(DiffEngine engine, long bytesIn, long bytesOut) {
+        summary("excel.diff.bytes.in", engine, "bytes").record(bytesIn);
+        summary("excel.diff.bytes.out", engine, "bytes").record(bytesOut);
+    }
+
+
+    private DistributionSummary summary(String name, DiffEngine engine, String baseUnit) {
+        return DistributionSummary.builder(name)
+                .tag("engine", engine.name().toLowerCase())
+                .baseUnit(baseUnit)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+
+    public static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        public CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+
+    public static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package com.project.excel_diff.service;
+
+@FunctionalInterface
+public interface DiffProgressListener {
+
+    DiffProgressListener NONE = (sheetsProcessed, sheetCount) -> { };
+
+    void sheetsProcessed(int sheetsProcessed, int sheetCount);
+
+}
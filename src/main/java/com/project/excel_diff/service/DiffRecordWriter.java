@@ -0,0 +1,46 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.project.excel_diff.model.DiffRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes differences as newline-delimited JSON, without flushing after each record
+public class DiffRecordWriter implements Closeable {
+
+    private final JsonGenerator generator;
+    private final ObjectWriter recordWriter;
+    private long recordCount;
+
+
+    public DiffRecordWriter(ObjectMapper objectMapper, OutputStream outputStream) throws IOException {
+        this.generator = objectMapper.getFactory().createGenerator(outputStream);
+        this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET); // The response stream belongs to the container
+        this.generator.setRootValueSeparator(null); // Records end with a newline instead of being separated by a space
+        this.recordWriter = objectMapper.writerFor(DiffRecord.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+
+    public void write(DiffRecord record) throws IOException {
+        recordWriter.writeValue(generator, record);
+        generator.writeRaw('\n');
+        recordCount++;
+    }
+
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+
+}
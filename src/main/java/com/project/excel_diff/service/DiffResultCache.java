@@ -0,0 +1,300 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FastByteArrayOutputStream;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Results of previous diffs, keyed by a digest of the uploaded bytes and the diff options.
+// Entries live in memory up to a total size, then optionally in a local spill directory, and expire after a TTL.
+@Slf4j
+@Service
+public class DiffResultCache {
+
+    private final ExcelToolsProperties.Cache cacheProperties;
+
+    // Access-ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize;
+    private long spillSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    public DiffResultCache(ExcelToolsProperties excelToolsProperties) {
+        this.cacheProperties = excelToolsProperties.getCache();
+    }
+
+
+    public boolean isEnabled() {
+        return cacheProperties.isEnabled();
+    }
+
+
+    public CacheKey keyOf(MultipartFile file, DiffOptions options) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        try (InputStream inputStream = new DigestInputStream(file.getInputStream(), messageDigest)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return new CacheKey(HexFormat.of().formatHex(messageDigest.digest()), options);
+    }
+
+
+    // Whether a result is cached for the key, it may still be evicted before being copied
+    public synchronized boolean contains(CacheKey key) {
+        CacheEntry entry = entries.get(key);
+        return entry != null && !entry.isExpired(cacheProperties);
+    }
+
+
+    // Writes a cached result to the output stream, returns false when there is none. Once part of a result was
+    // written, a failure is thrown: the caller must not append a recomputed result to the same response.
+    public boolean copyTo(CacheKey key, OutputStream outputStream) throws IOException {
+        byte[] bytes;
+        InputStream spilledResult = null;
+        synchronized (this) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null && entry.isExpired(cacheProperties)) {
+                remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            // Fields of the entry are only read under the lock, spill() replaces the bytes with a file. A spilled
+            // result is opened under the lock too, an open file staying readable when an eviction deletes it.
+            bytes = entry.bytes;
+            if (bytes == null) {
+                try {
+                    spilledResult = Files.newInputStream(entry.spillFile);
+                } catch (IOException e) {
+                    // The spilled result went away with the directory, compute it again
+                    log.warn("Could not read cached diff result {}", entry.spillFile, e);
+                    remove(key);
+                    misses.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+
+        if (bytes != null) {
+            outputStream.write(bytes);
+        } else {
+            try (InputStream inputStream = spilledResult) {
+                byte[] buffer = new byte[8192];
+                long written = 0;
+                while (true) {
+                    int read;
+                    try {
+                        read = inputStream.read(buffer);
+                    } catch (IOException e) {
+                        if (written > 0) {
+                            throw e;
+                        }
+                        log.warn("Could not read cached diff result", e);
+                        misses.incrementAndGet();
+                        return false;
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+                    outputStream.write(buffer, 0, read);
+                    written += read;
+                }
+            }
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+
+    // Wraps the output stream of a diff, so that its result is cached once recording is committed
+    public Recorder record(CacheKey key, OutputStream outputStream) {
+        return new Recorder(key, outputStream);
+    }
+
+
+    @Scheduled(fixedDelayString = "${excel-tools.cache.cleanup-interval:PT5M}")
+    public synchronized void removeExpiredEntries() {
+        entries.entrySet().removeIf(entry -> {
+            if (!entry.getValue().isExpired(cacheProperties)) {
+                return false;
+            }
+            release(entry.getValue());
+            return true;
+        });
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+
+    private synchronized void put(CacheKey key, byte[] bytes) {
+        remove(key);
+        entries.put(key, new CacheEntry(bytes));
+        memorySize += bytes.length;
+
+        // Move least recently used results out of memory, to the spill directory when there is one
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (memorySize > cacheProperties.getMaxSize().toBytes() && iterator.hasNext()) {
+            CacheEntry entry = iterator.next().getValue();
+            if (entry.bytes != null) {
+                memorySize -= entry.bytes.length;
+                if (!spill(entry)) {
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        iterator = entries.entrySet().iterator();
+        while (spillSize > cacheProperties.getMaxSpillSize().toBytes() && iterator.hasNext()) {
+            CacheEntry entry = iterator.next().getValue();
+            if (entry.spillFile != null) {
+                release(entry);
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+
+    private boolean spill(CacheEntry entry) {
+        if (cacheProperties.getSpillDirectory() == null) {
+            return false;
+        }
+        try {
+            Path spillFile = Files.createDirectories(cacheProperties.getSpillDirectory()).resolve(UUID.randomUUID() + ".result");
+            Files.write(spillFile, entry.bytes);
+            entry.spillFile = spillFile;
+            entry.size = entry.bytes.length;
+            entry.bytes = null;
+            spillSize += entry.size;
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not spill diff result to {}", cacheProperties.getSpillDirectory(), e);
+            return false;
+        }
+    }
+
+
+    private void remove(CacheKey key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+
+    private void release(CacheEntry entry) {
+        if (entry.bytes != null) {
+            memorySize -= entry.bytes.length;
+        }
+        if (entry.spillFile != null) {
+            spillSize -= entry.size;
+            try {
+                Files.deleteIfExists(entry.spillFile);
+            } catch (IOException e) {
+                log.warn("Could not delete cached diff result {}", entry.spillFile, e);
+            }
+        }
+    }
+
+
+    public record CacheKey(String digest, DiffOptions options) {
+    }
+
+
+    private static class CacheEntry {
+        private final Instant createdAt = Instant.now();
+        private byte[] bytes;
+        private Path spillFile;
+        private long size;
+
+        private CacheEntry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean isExpired(ExcelToolsProperties.Cache cacheProperties) {
+            return createdAt.plus(cacheProperties.getTimeToLive()).isBefore(Instant.now());
+        }
+    }
+
+
+    // Copies what is written to the response, giving up once the result exceeds the maximum entry size
+    public class Recorder extends FilterOutputStream {
+        private final CacheKey key;
+        private FastByteArrayOutputStream copy = new FastByteArrayOutputStream();
+
+        private Recorder(CacheKey key, OutputStream outputStream) {
+            super(outputStream);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkCopySize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkCopySize();
+            }
+        }
+
+        // Called once the diff has been fully written, a failed diff is never cached
+        public void commit() {
+            if (copy != null && copy.size() > 0) {
+                put(key, copy.toByteArrayUnsafe());
+            }
+            copy = null;
+        }
+
+        private void checkCopySize() {
+            if (copy.size() > cacheProperties.getMaxEntrySize().toBytes()) {
+                copy = null;
+            }
+        }
+    }
+
+}
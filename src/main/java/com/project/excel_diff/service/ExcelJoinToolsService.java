@@ -0,0 +1,316 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffRecord;
+import com.project.excel_diff.model.SheetLayout;
+import lombok.AllArgsConstructor;
+import org.apache.poi.ss.util.CellReference;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares a sheet of a baseline file with a sheet of a target file (xlsx, CSV or gzipped CSV), joining their rows on
+// the key columns of the layout. Files sorted by key are merged in a single pass holding one row of each side; other
+// files go through a hash join, partitioned on disk when the baseline rows exceed the memory budget.
+@Service
+@AllArgsConstructor
+public class ExcelJoinToolsService {
+
+    private final ExcelToolsProperties excelToolsProperties;
+    private final SheetReaders sheetReaders;
+
+
+    public void findDifferencesBetweenFiles(MultipartFile baselineFile,
+                                            String baselineSheet,
+                                            MultipartFile targetFile,
+                                            String targetSheet,
+                                            SheetLayout layout,
+                                            DiffRecordWriter recordWriter) throws Exception {
+        Path baselinePath = null;
+        Path targetPath = null;
+        try {
+            // Keep uploads on disk, they are read twice: once to check their order, once to be joined
+            baselinePath = copyToTempFile(baselineFile);
+            targetPath   = copyToTempFile(targetFile);
+            this.findDifferencesBetweenFiles(new SheetSource(baselinePath, baselineFile.getOriginalFilename(), baselineSheet),
+                                             new SheetSource(targetPath, targetFile.getOriginalFilename(), targetSheet),
+                                             layout,
+                                             recordWriter);
+        } finally {
+            if (baselinePath != null) {
+                Files.deleteIfExists(baselinePath);
+            }
+            if (targetPath != null) {
+                Files.deleteIfExists(targetPath);
+            }
+        }
+    }
+
+
+    void findDifferencesBetweenFiles(SheetSource baseline, SheetSource target, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        try {
+            if (isSortedByKey(baseline, layout) && isSortedByKey(target, layout)) {
+                mergeJoin(baseline, target, layout, recordWriter);
+            } else {
+                hashJoin(baseline, target, layout, recordWriter);
+            }
+        } catch (Exception e) {
+            throw new Exception("Exception from findDifferencesBetweenFiles() " + e.getMessage());
+        }
+    }
+
+
+    // Keys must be strictly increasing, a duplicated key can't be merged with a single row of each side
+    private boolean isSortedByKey(SheetSource source, SheetLayout layout) throws Exception {
+        try (RowReader rowReader = sheetReaders.open(source)) {
+            String previousKey = null;
+            KeyedRow row;
+            while ((row = nextKeyedRow(rowReader, layout)) != null) {
+                if (previousKey != null && previousKey.compareTo(row.key()) >= 0) {
+                    return false;
+                }
+                previousKey = row.key();
+            }
+            return true;
+        }
+    }
+
+
+    private void mergeJoin(SheetSource baseline, SheetSource target, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        try (RowReader baselineReader = sheetReaders.open(baseline);
+             RowReader targetReader = sheetReaders.open(target)) {
+            KeyedRow baselineRow = nextKeyedRow(baselineReader, layout);
+            KeyedRow targetRow   = nextKeyedRow(targetReader, layout);
+
+            while (baselineRow != null || targetRow != null) {
+                int order = baselineRow == null ? 1 : targetRow == null ? -1 : baselineRow.key().compareTo(targetRow.key());
+                if (order < 0) {
+                    recordWriter.write(DiffRecord.removed(baselineReader.name(), targetReader.name(), baselineRow.key()));
+                    baselineRow = nextKeyedRow(baselineReader, layout);
+                } else if (order > 0) {
+                    recordWriter.write(DiffRecord.added(baselineReader.name(), targetReader.name(), targetRow.key()));
+                    targetRow = nextKeyedRow(targetReader, layout);
+                } else {
+                    compareRows(baselineReader.name(), targetReader.name(), layout, baselineRow.cells(), targetRow, recordWriter);
+                    baselineRow = nextKeyedRow(baselineReader, layout);
+                    targetRow   = nextKeyedRow(targetReader, layout);
+                }
+            }
+        }
+    }
+
+
+    private void hashJoin(SheetSource baseline, SheetSource target, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        long memoryBudget = excelToolsProperties.getSpill().getMemoryBudget().toBytes();
+
+        try (RowReader baselineReader = sheetReaders.open(baseline);
+             RowReader targetReader = sheetReaders.open(target)) {
+            Map<String, KeyedRow> baselineRows = new LinkedHashMap<>();
+            Map<String, List<Integer>> baselineDuplicateRowNums = new LinkedHashMap<>();
+            long baselineSize = 0;
+            KeyedRow row;
+            while ((row = nextKeyedRow(baselineReader, layout)) != null) {
+                // A row replacing the previous row of its key only adds the difference of their sizes
+                KeyedRow previousRow = putRow(baselineRows, row, baselineDuplicateRowNums);
+                baselineSize += SpilledRows.estimatedSize(row.cells()) - (previousRow != null ? SpilledRows.estimatedSize(previousRow.cells()) : 0);
+                if (baselineSize > memoryBudget) {
+                    partitionedHashJoin(baselineRows, baselineDuplicateRowNums, baselineReader, targetReader, layout, recordWriter);
+                    writeDuplicates(baselineReader.name(), baselineDuplicateRowNums, recordWriter);
+                    return;
+                }
+            }
+            probe(baselineRows, baselineReader.name(), targetReader, () -> sheetReaders.open(target), targetReader.name(), layout, recordWriter);
+            writeDuplicates(baselineReader.name(), baselineDuplicateRowNums, recordWriter);
+        }
+    }
+
+
+    // Grace hash join: both sides are split by key hash in partition files, then each baseline partition is
+    // loaded in memory and probed with the target partition holding the same keys. Rows are tagged with their
+    // row number in the partition files, so that header rows are still told apart when they are read back, and
+    // duplicated keys found once the rows held in memory were spilled are added to the duplicates found before.
+    private void partitionedHashJoin(Map<String, KeyedRow> baselineRows,
+                                     Map<String, List<Integer>> baselineDuplicateRowNums,
+                                     RowReader baselineReader,
+                                     RowReader targetReader,
+                                     SheetLayout layout,
+                                     DiffRecordWriter recordWriter) throws Exception {
+        ExcelToolsProperties.Spill spillProperties = excelToolsProperties.getSpill();
+        try (SpilledRows baselinePartitions = new SpilledRows(spillProperties.getDirectory(), "baseline", spillProperties.getPartitionCount());
+             SpilledRows targetPartitions = new SpilledRows(spillProperties.getDirectory(), "target", spillProperties.getPartitionCount())) {
+            for (KeyedRow baselineRow : baselineRows.values()) {
+                baselinePartitions.write(baselineRow.rowNum(), baselineRow.key(), baselineRow.cells());
+            }
+            baselineRows.clear();
+            KeyedRow row;
+            while ((row = nextKeyedRow(baselineReader, layout)) != null) {
+                baselinePartitions.write(row.rowNum(), row.key(), row.cells());
+            }
+            baselinePartitions.finishWriting();
+
+            while ((row = nextKeyedRow(targetReader, layout)) != null) {
+                targetPartitions.write(row.rowNum(), row.key(), row.cells());
+            }
+            targetPartitions.finishWriting();
+
+            for (int partition = 0; partition < spillProperties.getPartitionCount(); partition++) {
+                Map<String, KeyedRow> partitionRows = new LinkedHashMap<>();
+                try (RowReader partitionReader = baselinePartitions.open(partition)) {
+                    while ((row = nextKeyedRow(partitionReader, layout)) != null) {
+                        putRow(partitionRows, row, baselineDuplicateRowNums);
+                    }
+                }
+                int targetPartition = partition;
+                try (RowReader partitionReader = targetPartitions.open(partition)) {
+                    probe(partitionRows, baselineReader.name(), partitionReader, () -> targetPartitions.open(targetPartition), targetReader.name(), layout, recordWriter);
+                }
+            }
+        }
+    }
+
+
+    // Target rows are looked up in the baseline rows, baseline keys not found in the target are removed rows.
+    // Like in the other engines, the last row of a key duplicated in the target decides: the target is read once
+    // for the last row number of each key, which the keys of the target already took in memory, then again to
+    // compare or add only these rows.
+    private void probe(Map<String, KeyedRow> baselineRows,
+                       String baselineName,
+                       RowReader targetReader,
+                       TargetRows targetRows,
+                       String targetName,
+                       SheetLayout layout,
+                       DiffRecordWriter recordWriter) throws Exception {
+        Map<String, Integer> targetLastRowNums = new HashMap<>();
+        Map<String, List<Integer>> targetDuplicateRowNums = new LinkedHashMap<>();
+        KeyedRow targetRow;
+        while ((targetRow = nextKeyedRow(targetReader, layout)) != null) {
+            Integer previousRowNum = targetLastRowNums.put(targetRow.key(), targetRow.rowNum());
+            if (previousRowNum != null) {
+                targetDuplicateRowNums.computeIfAbsent(targetRow.key(), key -> new ArrayList<>(List.of(previousRowNum))).add(targetRow.rowNum());
+            }
+        }
+
+        try (RowReader lastRowReader = targetRows.open()) {
+            while ((targetRow = nextKeyedRow(lastRowReader, layout)) != null) {
+                if (targetLastRowNums.get(targetRow.key()) != targetRow.rowNum()) {
+                    continue;
+                }
+                KeyedRow baselineRow = baselineRows.get(targetRow.key());
+                if (baselineRow == null) {
+                    recordWriter.write(DiffRecord.added(baselineName, targetName, targetRow.key()));
+                } else {
+                    compareRows(baselineName, targetName, layout, baselineRow.cells(), targetRow, recordWriter);
+                }
+            }
+        }
+        for (String key : baselineRows.keySet()) {
+            if (!targetLastRowNums.containsKey(key)) {
+                recordWriter.write(DiffRecord.removed(baselineName, targetName, key));
+            }
+        }
+        writeDuplicates(targetName, targetDuplicateRowNums, recordWriter);
+    }
+
+
+    // The last row of a key is kept, like in the other engines, the numbers of the rows of a duplicated key being
+    // collected. Returns the row replaced, if any.
+    private static KeyedRow putRow(Map<String, KeyedRow> rows, KeyedRow row, Map<String, List<Integer>> duplicateRowNums) {
+        KeyedRow previousRow = rows.put(row.key(), row);
+        if (previousRow != null) {
+            duplicateRowNums.computeIfAbsent(row.key(), key -> new ArrayList<>(List.of(previousRow.rowNum()))).add(row.rowNum());
+        }
+        return previousRow;
+    }
+
+
+    // Row numbers are reported 1-based, as displayed by spreadsheet applications
+    static void writeDuplicates(String sheetName, Map<String, List<Integer>> duplicateRowNums, DiffRecordWriter recordWriter) throws IOException {
+        for (Map.Entry<String, List<Integer>> duplicate : duplicateRowNums.entrySet()) {
+            recordWriter.write(DiffRecord.duplicate(sheetName, duplicate.getKey(), duplicate.getValue().stream().map(rowNum -> rowNum + 1).toList()));
+        }
+    }
+
+
+    static void compareRows(String baselineName,
+                            String targetName,
+                            SheetLayout layout,
+                            String[] baselineCells,
+                            KeyedRow targetRow,
+                            DiffRecordWriter recordWriter) throws Exception {
+        String[] targetCells = targetRow.cells();
+        for (int columnIndex = 0; columnIndex < Math.max(baselineCells.length, targetCells.length); columnIndex++) {
+            String baselineValue = cellValue(baselineCells, columnIndex);
+            String targetValue   = cellValue(targetCells, columnIndex);
+            if (layout.isCompared(columnIndex) && !baselineValue.equals(targetValue)) {
+                recordWriter.write(DiffRecord.changed(baselineName,
+                                                      targetName,
+                                                      targetRow.key(),
+                                                      CellReference.convertNumToColString(columnIndex),
+                                                      baselineValue,
+                                                      targetValue));
+            }
+        }
+    }
+
+
+    // Header rows and rows without a key can't be joined, they are skipped like in the other engines. Header rows
+    // are told by their number, since blank rows before them are missing from a workbook.
+    static KeyedRow nextKeyedRow(RowReader rowReader, SheetLayout layout) throws IOException {
+        String[] cells;
+        while ((cells = rowReader.next()) != null) {
+            if (rowReader.rowNum() < layout.headerRows()) {
+                continue;
+            }
+            String key = layout.keyOf(cells);
+            if (key != null) {
+                return new KeyedRow(rowReader.rowNum(), key, cells);
+            }
+        }
+        return null;
+    }
+
+
+    private static String cellValue(String[] cells, int columnIndex) {
+        return columnIndex < cells.length && cells[columnIndex] != null ? cells[columnIndex] : "";
+    }
+
+
+    static Path copyToTempFile(MultipartFile file) throws IOException {
+        Path tempFile = Files.createTempFile("excel-diff-", isCsv(file.getOriginalFilename()) ? ".csv" : ".xlsx");
+        try (InputStream inputStream = file.getInputStream()) {
+            Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return tempFile;
+    }
+
+
+    private static boolean isCsv(String fileName) {
+        return fileName != null && fileName.toLowerCase().endsWith(".csv");
+    }
+
+
+    // A sheet of an xlsx file, or a CSV file which has a single sheet named after the file, opened by SheetReaders
+    record SheetSource(Path file, String fileName, String sheetName) {
+    }
+
+
+    record KeyedRow(int rowNum, String key, String[] cells) {
+    }
+
+
+    // Opens the target rows probed again, from the sheet or from a partition file
+    private interface TargetRows {
+        RowReader open() throws Exception;
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.model.DiffRecord;
+import com.project.excel_diff.model.SheetData;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.SheetSnapshot;
+import lombok.AllArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stores snapshots of sheets and compares new sheets (xlsx or CSV) with them, so that the newest sheet of a history
+// is only compared with the stored rows of the previous one, instead of the whole history being uploaded, parsed and
+// diffed pair after pair. Only keys and row hashes of the snapshot are held in memory, with the keys of the new sheet
+// and the rows whose hash changed.
+@Service
+@AllArgsConstructor
+public class ExcelSnapshotToolsService {
+
+    private final SheetSnapshotStore sheetSnapshotStore;
+    private final SheetReaders sheetReaders;
+
+
+    public SheetSnapshot createSnapshot(MultipartFile file, String sheetName, SheetLayout layout) throws Exception {
+        Path path = null;
+        try {
+            path = ExcelJoinToolsService.copyToTempFile(file);
+            return this.createSnapshot(new ExcelJoinToolsService.SheetSource(path, file.getOriginalFilename(), sheetName), layout);
+        } finally {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+
+    SheetSnapshot createSnapshot(ExcelJoinToolsService.SheetSource source, SheetLayout layout) throws Exception {
+        try (RowReader rowReader = sheetReaders.open(source);
+             SheetSnapshotStore.Writer snapshotWriter = sheetSnapshotStore.create(sheetSnapshotStore.newSnapshotId(), source.fileName(), rowReader.name(), layout)) {
+            ExcelJoinToolsService.KeyedRow row;
+            while ((row = ExcelJoinToolsService.nextKeyedRow(rowReader, layout)) != null) {
+                snapshotWriter.write(row.key(), rowHash(row.cells(), layout), row.cells());
+            }
+            return snapshotWriter.commit();
+        } catch (Exception e) {
+            throw new Exception("Exception from createSnapshot() " + e.getMessage());
+        }
+    }
+
+
+    // The sheet is stored as a new snapshot with the given id in the same pass, none when the id is null
+    public void findDifferencesWithSnapshot(SheetSnapshot baseline,
+                                            MultipartFile file,
+                                            String sheetName,
+                                            String newSnapshotId,
+                                            DiffRecordWriter recordWriter) throws Exception {
+        Path path = null;
+        try {
+            path = ExcelJoinToolsService.copyToTempFile(file);
+            this.findDifferencesWithSnapshot(baseline,
+                                             new ExcelJoinToolsService.SheetSource(path, file.getOriginalFilename(), sheetName),
+                                             newSnapshotId,
+                                             recordWriter);
+        } finally {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+
+    void findDifferencesWithSnapshot(SheetSnapshot baseline,
+                                     ExcelJoinToolsService.SheetSource target,
+                                     String newSnapshotId,
+                                     DiffRecordWriter recordWriter) throws Exception {
+        // Rows are keyed with the layout of the snapshot, a different one would match no key
+        SheetLayout layout = baseline.layout();
+        String baselineName = baseline.sheetName();
+
+        try {
+            Map<String, Long> baselineRowHashes = new LinkedHashMap<>();
+            try (SheetSnapshotStore.Reader snapshotReader = sheetSnapshotStore.open(baseline)) {
+                while (snapshotReader.next()) {
+                    baselineRowHashes.put(snapshotReader.key(), snapshotReader.rowHash());
+                }
+            }
+
+            Map<String, ExcelJoinToolsService.KeyedRow> changedRows = new HashMap<>();
+            Map<String, Integer> targetFirstRowNums = new HashMap<>();
+            Map<String, List<Integer>> targetDuplicateRowNums = new LinkedHashMap<>();
+            String targetName;
+            try (RowReader targetReader = sheetReaders.open(target);
+                 SheetSnapshotStore.Writer snapshotWriter = newSnapshotId == null ? null : sheetSnapshotStore.create(newSnapshotId, target.fileName(), targetReader.name(), layout)) {
+                targetName = targetReader.name();
+                ExcelJoinToolsService.KeyedRow row;
+                while ((row = ExcelJoinToolsService.nextKeyedRow(targetReader, layout)) != null) {
+                    long rowHash = rowHash(row.cells(), layout);
+                    Integer firstRowNum = targetFirstRowNums.putIfAbsent(row.key(), row.rowNum());
+                    if (firstRowNum != null) {
+                        targetDuplicateRowNums.computeIfAbsent(row.key(), key -> new ArrayList<>(List.of(firstRowNum))).add(row.rowNum());
+                    }
+                    // Keys are looked up without being removed, a key may be found again on a later row whose
+                    // hash decides whether the key changed, the last row of a key being compared
+                    Long baselineRowHash = baselineRowHashes.get(row.key());
+                    if (baselineRowHash == null) {
+                        if (firstRowNum == null) {
+                            recordWriter.write(DiffRecord.added(baselineName, targetName, row.key()));
+                        }
+                    } else if (baselineRowHash != rowHash) {
+                        changedRows.put(row.key(), row);
+                    } else {
+                        changedRows.remove(row.key());
+                    }
+                    if (snapshotWriter != null) {
+                        snapshotWriter.write(row.key(), rowHash, row.cells());
+                    }
+                }
+                if (snapshotWriter != null) {
+                    snapshotWriter.commit();
+                }
+            }
+            for (String key : baselineRowHashes.keySet()) {
+                if (!targetFirstRowNums.containsKey(key)) {
+                    recordWriter.write(DiffRecord.removed(baselineName, targetName, key));
+                }
+            }
+            ExcelJoinToolsService.writeDuplicates(targetName, targetDuplicateRowNums, recordWriter);
+
+            // Cells of the snapshot are only decoded for rows whose hash changed, the last row of a key being compared
+            if (!changedRows.isEmpty()) {
+                Map<String, String[]> baselineRows = new LinkedHashMap<>();
+                try (SheetSnapshotStore.Reader snapshotReader = sheetSnapshotStore.open(baseline)) {
+                    while (snapshotReader.next()) {
+                        if (changedRows.containsKey(snapshotReader.key())) {
+                            baselineRows.put(snapshotReader.key(), snapshotReader.cells());
+                        }
+                    }
+                }
+                for (Map.Entry<String, String[]> baselineRow : baselineRows.entrySet()) {
+                    ExcelJoinToolsService.compareRows(baselineName,
+                                                      targetName,
+                                                      layout,
+                                                      baselineRow.getValue(),
+                                                      changedRows.get(baselineRow.getKey()),
+                                                      recordWriter);
+                }
+            }
+        } catch (Exception e) {
+            throw new Exception("Exception from findDifferencesWithSnapshot() " + e.getMessage());
+        }
+    }
+
+
+    // 64-bit hash of the compared cells of a row, blank and missing cells hashing the same. Rows with equal hashes
+    // are considered unchanged, as in the usermodel engine.
+    static long rowHash(String[] cells, SheetLayout layout) {
+        long rowHash = SheetData.ROW_HASH_SEED;
+        for (int columnIndex = 0; columnIndex < cells.length; columnIndex++) {
+            String cell = cells[columnIndex];
+            if (cell != null && layout.isCompared(columnIndex)) {
+                // FNV-1a over the characters of the cell, String.hashCode being only 32 bits
+                long cellHash = 0xCBF29CE484222325L;
+                for (int charIndex = 0; charIndex < cell.length(); charIndex++) {
+                    cellHash = (cellHash ^ cell.charAt(charIndex)) * 0x100000001B3L;
+                }
+                rowHash = SheetData.combineRowHash(rowHash, cellHash, columnIndex);
+            }
+        }
+        return rowHash;
+    }
+
+}
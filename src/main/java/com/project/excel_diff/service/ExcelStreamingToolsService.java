@@ -0,0 +1,812 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.CellNormalizer;
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffRecord;
+import com.project.excel_diff.model.SheetLayout;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Slf4j
+@Service
+@AllArgsConstructor
+public class ExcelStreamingToolsService {
+
+    // Cells are held as their type followed by their raw value, so that they can be spilled as strings and still be
+    // compared like the usermodel engine compares typed cells. Blank cells are null.
+    private static final char STRING  = 's';
+    private static final char NUMBER  = 'n';
+    private static final char DATE    = 'd';
+    private static final char BOOLEAN = 'b';
+    private static final char FORMULA = 'f';
+
+    private final ExcelToolsProperties excelToolsProperties;
+    private final DiffMetrics diffMetrics;
+
+
+    public void findDifferencesBetweenSheets(MultipartFile file, OutputStream outputStream) throws Exception {
+        this.findDifferencesBetweenSheets(file, SheetLayout.DEFAULT, outputStream);
+    }
+
+
+    public void findDifferencesBetweenSheets(MultipartFile file, SheetLayout layout, OutputStream outputStream) throws Exception {
+        Path uploadedFile = Files.createTempFile("excel-diff-", ".xlsx");
+        try {
+            // Keep the upload on disk so the package is read part by part instead of being loaded in memory
+            try (InputStream inputStream = file.getInputStream()) {
+                Files.copy(inputStream, uploadedFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.findDifferencesBetweenSheets(uploadedFile, layout, outputStream, DiffProgressListener.NONE);
+        } finally {
+            Files.deleteIfExists(uploadedFile);
+        }
+    }
+
+
+    public void findDifferencesBetweenSheets(Path uploadedFile,
+                                             SheetLayout layout,
+                                             OutputStream outputStream,
+                                             DiffProgressListener progressListener) throws Exception {
+        DiffMetrics.CountingOutputStream countingOutputStream = new DiffMetrics.CountingOutputStream(outputStream);
+        try (SXSSFWorkbook outputWorkbook = new SXSSFWorkbook(excelToolsProperties.getStreaming().getRowAccessWindowSize())) {
+            // Set cell styles once for the output workbook
+            OutputStyles outputStyles = createOutputStyles(outputWorkbook);
+
+            int sheetsRead = this.readAndCompareSheets(uploadedFile,
+                                                       layout,
+                                                       null,
+                                                       sheet -> writeSheet(outputWorkbook, sheet, outputStyles),
+                                                       DiffMetrics.STYLING,
+                                                       progressListener);
+            if (sheetsRead > 1) {
+                // Save into outputStream an Excel file with highlighted and labeled differences
+                long phaseStart = System.nanoTime();
+                outputWorkbook.write(countingOutputStream);
+                diffMetrics.recordPhase(DiffEngine.STREAMING, DiffMetrics.SERIALIZATION, phaseStart);
+            }
+            diffMetrics.recordBytes(DiffEngine.STREAMING, Files.size(uploadedFile), countingOutputStream.getCount());
+        } catch (Exception e) {
+            throw new Exception("Exception from findDifferencesBetweenSheets() " + e.getMessage());
+        }
+    }
+
+
+    public void findDifferencesAsRecords(MultipartFile file, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        Path uploadedFile = Files.createTempFile("excel-diff-", ".xlsx");
+        try {
+            try (InputStream inputStream = file.getInputStream()) {
+                Files.copy(inputStream, uploadedFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.findDifferencesAsRecords(uploadedFile, layout, recordWriter);
+        } finally {
+            Files.deleteIfExists(uploadedFile);
+        }
+    }
+
+
+    // Differences are written as records while sheets are compared, no output workbook is built
+    public void findDifferencesAsRecords(Path uploadedFile, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        try {
+            this.readAndCompareSheets(uploadedFile, layout, recordWriter, StreamedSheet::release, null, DiffProgressListener.NONE);
+            diffMetrics.recordBytes(DiffEngine.STREAMING, Files.size(uploadedFile), 0);
+        } catch (Exception e) {
+            throw new Exception("Exception from findDifferencesAsRecords() " + e.getMessage());
+        }
+    }
+
+
+    // Parse and compare step shared by both outputs. Only two consecutive sheets are held in memory: once a sheet
+    // has been compared with its previous and next sheets, it is handed to the output stage, which releases its
+    // rows. Differences are also written as records when a record writer is given. Returns the number of sheets.
+    private int readAndCompareSheets(Path uploadedFile,
+                                     SheetLayout layout,
+                                     DiffRecordWriter recordWriter,
+                                     ComparedSheetSink comparedSheetSink,
+                                     String outputPhase,
+                                     DiffProgressListener progressListener) throws Exception {
+        OPCPackage opcPackage = null;
+        StreamedSheet previousSheet = null;
+        StreamedSheet nextSheet = null;
+        long phaseStart = System.nanoTime();
+        try {
+            opcPackage = OPCPackage.open(uploadedFile.toFile(), PackageAccess.READ);
+
+            XSSFReader xssfReader = new XSSFReader(opcPackage);
+            ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(opcPackage);
+            StylesTable styles = xssfReader.getStylesTable();
+            int sheetCount = countSheets(xssfReader);
+            // Cells are compared with the same tolerances as in the usermodel engine
+            ExcelToolsProperties.Comparison comparison = excelToolsProperties.getComparison();
+            CellNormalizer normalizer = new CellNormalizer(comparison.getNumericTolerance(), comparison.getDateTolerance());
+            normalizer.setDate1904(isDate1904(xssfReader));
+            diffMetrics.recordPhase(DiffEngine.STREAMING, DiffMetrics.PARSE, phaseStart);
+
+            // Phases are interleaved sheet after sheet, their durations are summed up
+            long extractionNanos = 0;
+            long comparisonNanos = 0;
+            long outputNanos     = 0;
+            long rows  = 0;
+            long cells = 0;
+            SheetDifferenceCounts differenceCounts = new SheetDifferenceCounts();
+
+            XSSFReader.SheetIterator sheetIterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+            int sheetsRead = 0;
+            while (sheetIterator.hasNext()) {
+                long stepStart = System.nanoTime();
+                try (InputStream sheetInputStream = sheetIterator.next()) {
+                    nextSheet = readSheet(sheetIterator.getSheetName(), layout, normalizer, sheetInputStream, styles, sharedStrings);
+                }
+                rows  += nextSheet.rowCount;
+                cells += nextSheet.cellCount;
+                extractionNanos += System.nanoTime() - stepStart;
+
+                if (previousSheet != null) {
+                    stepStart = System.nanoTime();
+                    compareSheets(previousSheet, nextSheet, differenceCounts, recordWriter);
+                    comparisonNanos += System.nanoTime() - stepStart;
+
+                    stepStart = System.nanoTime();
+                    writeDuplicates(previousSheet, recordWriter);
+                    comparedSheetSink.accept(previousSheet);
+                    outputNanos += System.nanoTime() - stepStart;
+                }
+                previousSheet = nextSheet;
+                nextSheet = null;
+                sheetsRead++;
+                progressListener.sheetsProcessed(sheetsRead, sheetCount);
+            }
+
+            if (sheetsRead > 1) {
+                long stepStart = System.nanoTime();
+                writeDuplicates(previousSheet, recordWriter);
+                comparedSheetSink.accept(previousSheet);
+                outputNanos += System.nanoTime() - stepStart;
+
+                diffMetrics.recordPhaseDuration(DiffEngine.STREAMING, DiffMetrics.EXTRACTION, extractionNanos);
+                diffMetrics.recordPhaseDuration(DiffEngine.STREAMING, DiffMetrics.COMPARISON, comparisonNanos);
+                if (outputPhase != null) {
+                    diffMetrics.recordPhaseDuration(DiffEngine.STREAMING, outputPhase, outputNanos);
+                }
+                diffMetrics.recordSize(DiffEngine.STREAMING, sheetsRead, rows, cells);
+                diffMetrics.recordChanges(DiffEngine.STREAMING, differenceCounts.addedRows, differenceCounts.removedRows, differenceCounts.changedRows);
+            }
+            return sheetsRead;
+        } catch (Exception e) {
+            throw new Exception("Exception from readAndCompareSheets() " + e.getMessage());
+        } finally {
+            release(previousSheet);
+            release(nextSheet);
+            if (opcPackage != null) {
+                opcPackage.revert(); // Read-only package, nothing to save
+            }
+        }
+    }
+
+
+    private int countSheets(XSSFReader xssfReader) throws Exception {
+        int sheetCount = 0;
+        Iterator<InputStream> sheetIterator = xssfReader.getSheetsData();
+        while (sheetIterator.hasNext()) {
+            sheetIterator.next().close();
+            sheetCount++;
+        }
+        return sheetCount;
+    }
+
+
+    // The date system is an attribute of the workbook part, found before the list of its sheets
+    private boolean isDate1904(XSSFReader xssfReader) throws Exception {
+        try (InputStream workbookData = xssfReader.getWorkbookData()) {
+            XMLStreamReader xmlReader = XMLHelper.newXMLInputFactory().createXMLStreamReader(workbookData);
+            try {
+                while (xmlReader.hasNext()) {
+                    if (xmlReader.next() == XMLStreamConstants.START_ELEMENT) {
+                        if (xmlReader.getLocalName().equals("workbookPr")) {
+                            String date1904 = xmlReader.getAttributeValue(null, "date1904");
+                            return "1".equals(date1904) || "true".equals(date1904);
+                        }
+                        if (xmlReader.getLocalName().equals("sheets")) {
+                            return false;
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                xmlReader.close();
+            }
+        }
+    }
+
+
+    private StreamedSheet readSheet(String sheetName,
+                                    SheetLayout layout,
+                                    CellNormalizer normalizer,
+                                    InputStream sheetInputStream,
+                                    StylesTable styles,
+                                    ReadOnlySharedStringsTable sharedStrings) throws Exception {
+        // Two sheets are held at a time, each gets half of the memory budget
+        ExcelToolsProperties.Spill spillProperties = excelToolsProperties.getSpill();
+        StreamedSheet sheet = new StreamedSheet(sheetName, layout, normalizer, spillProperties.getMemoryBudget().toBytes() / 2, spillProperties);
+        try {
+            XMLReader xmlReader = XMLHelper.newXMLReader();
+            xmlReader.setContentHandler(new StreamedSheetHandler(sheet, styles, sharedStrings));
+            xmlReader.parse(new InputSource(sheetInputStream));
+            sheet.finishReading();
+            return sheet;
+        } catch(Exception e) {
+            sheet.release();
+            throw new Exception("Exception from readSheet() " + e.getMessage());
+        }
+    }
+
+
+    private void compareSheets(StreamedSheet previousSheet,
+                               StreamedSheet nextSheet,
+                               SheetDifferenceCounts differenceCounts,
+                               DiffRecordWriter recordWriter) throws Exception {
+        try {
+            if (!previousSheet.isSpilled() && !nextSheet.isSpilled()) {
+                compareRows(previousSheet, previousSheet.rowByKey, nextSheet, nextSheet.rowByKey, differenceCounts, recordWriter);
+                return;
+            }
+
+            // At least one sheet exceeded its memory budget: both are split by key hash, and rows are compared
+            // partition after partition since a key always lands in the same partition
+            previousSheet.spill();
+            nextSheet.spill();
+            for (int partition = 0; partition < previousSheet.partitionedRows.partitionCount(); partition++) {
+                compareRows(previousSheet, loadPartition(previousSheet, partition),
+                            nextSheet, loadPartition(nextSheet, partition),
+                            differenceCounts, recordWriter);
+            }
+            // Duplicated keys of a spilled sheet are found while its partitions are loaded for the first time
+            previousSheet.duplicatesScanned = true;
+            nextSheet.duplicatesScanned = true;
+        } catch(Exception e) {
+            throw new Exception("Exception from compareSheets() " + e.getMessage());
+        }
+    }
+
+
+    private void compareRows(StreamedSheet previousSheet,
+                             Map<String, StreamedRow> previousRowByKey,
+                             StreamedSheet nextSheet,
+                             Map<String, StreamedRow> nextRowByKey,
+                             SheetDifferenceCounts differenceCounts,
+                             DiffRecordWriter recordWriter) throws Exception {
+        CellNormalizer normalizer = nextSheet.normalizer;
+
+        // Keys of the previous sheet first, then keys only found in the next sheet, without building their union
+        for (Map.Entry<String, StreamedRow> previousRow : previousRowByKey.entrySet()) {
+            String key = previousRow.getKey();
+            StreamedRow nextRow = nextRowByKey.get(key);
+
+            if (nextRow == null) {
+                previousSheet.removedRows.add(previousRow.getValue().rowNum());
+                differenceCounts.removedRows++;
+                if (recordWriter != null) {
+                    recordWriter.write(DiffRecord.removed(previousSheet.name, nextSheet.name, key));
+                }
+            } else {
+                String[] previousCells = previousRow.getValue().cells();
+                String[] nextCells     = nextRow.cells();
+                for (int columnIndex = 0; columnIndex < Math.max(previousCells.length, nextCells.length); columnIndex++) {
+                    String previousCell = cellAt(previousCells, columnIndex);
+                    String nextCell     = cellAt(nextCells, columnIndex);
+                    if (nextSheet.layout.isCompared(columnIndex) && !valueEquals(normalizer, previousCell, nextCell)) {
+                        nextSheet.changedCells.computeIfAbsent(nextRow.rowNum(), rowNum -> new HashSet<>()).add(columnIndex);
+                        if (recordWriter != null) {
+                            recordWriter.write(DiffRecord.changed(previousSheet.name,
+                                                                  nextSheet.name,
+                                                                  key,
+                                                                  CellReference.convertNumToColString(columnIndex),
+                                                                  display(normalizer, previousCell),
+                                                                  display(normalizer, nextCell)));
+                        }
+                    }
+                }
+                if (nextSheet.changedCells.containsKey(nextRow.rowNum())) {
+                    differenceCounts.changedRows++;
+                }
+            }
+        }
+        for (Map.Entry<String, StreamedRow> nextRow : nextRowByKey.entrySet()) {
+            if (!previousRowByKey.containsKey(nextRow.getKey())) {
+                nextSheet.addedRows.add(nextRow.getValue().rowNum());
+                differenceCounts.addedRows++;
+                if (recordWriter != null) {
+                    recordWriter.write(DiffRecord.added(previousSheet.name, nextSheet.name, nextRow.getKey()));
+                }
+            }
+        }
+    }
+
+
+    // The last row of a key is compared, like in the usermodel engine
+    private Map<String, StreamedRow> loadPartition(StreamedSheet sheet, int partition) throws Exception {
+        Map<String, StreamedRow> rowByKey = new LinkedHashMap<>();
+        try (SpilledRows.Reader partitionReader = sheet.partitionedRows.open(partition)) {
+            String[] cells;
+            while ((cells = partitionReader.next()) != null) {
+                StreamedRow row = new StreamedRow(partitionReader.rowNum(), cells);
+                String key = sheet.keyOf(row.rowNum(), cells);
+                StreamedRow previousRow = rowByKey.put(key, row);
+                if (previousRow != null && !sheet.duplicatesScanned) {
+                    sheet.addDuplicate(key, previousRow.rowNum(), row.rowNum());
+                }
+            }
+        }
+        return rowByKey;
+    }
+
+
+    // Row numbers are reported 1-based, as in the usermodel engine
+    private void writeDuplicates(StreamedSheet sheet, DiffRecordWriter recordWriter) throws IOException {
+        if (recordWriter == null) {
+            return;
+        }
+        for (Map.Entry<String, List<Integer>> duplicate : sheet.duplicateRowNums.entrySet()) {
+            List<Integer> rowNums = duplicate.getValue().stream().map(rowNum -> rowNum + 1).toList();
+            recordWriter.write(DiffRecord.duplicate(sheet.name, duplicate.getKey(), rowNums));
+        }
+    }
+
+
+    private void writeSheet(Workbook outputWorkbook, StreamedSheet streamedSheet, OutputStyles outputStyles) throws Exception {
+        try {
+            Sheet sheet = outputWorkbook.createSheet(streamedSheet.name);
+            Set<Integer> duplicateRowNums = new HashSet<>();
+            for (List<Integer> rowNums : streamedSheet.duplicateRowNums.values()) {
+                duplicateRowNums.addAll(rowNums);
+            }
+            if (!streamedSheet.isSpilled()) {
+                for (StreamedRow streamedRow : streamedSheet.rows) {
+                    writeRow(sheet, streamedSheet, streamedRow.rowNum(), streamedRow.cells(), duplicateRowNums, outputStyles);
+                }
+            } else {
+                // Rows of a spilled sheet are read back from disk in their original order
+                try (SpilledRows.Reader rowReader = streamedSheet.spilledRows.open(0)) {
+                    String[] cells;
+                    while ((cells = rowReader.next()) != null) {
+                        writeRow(sheet, streamedSheet, rowReader.rowNum(), cells, duplicateRowNums, outputStyles);
+                    }
+                }
+            }
+            streamedSheet.release();
+        } catch(Exception e) {
+            throw new Exception("Exception from writeSheet() " + e.getMessage());
+        }
+    }
+
+
+    private void writeRow(Sheet sheet,
+                          StreamedSheet streamedSheet,
+                          int rowNum,
+                          String[] cells,
+                          Set<Integer> duplicateRowNums,
+                          OutputStyles outputStyles) {
+        Row row = sheet.createRow(rowNum);
+        for (int columnIndex = 0; columnIndex < cells.length; columnIndex++) {
+            if (cells[columnIndex] != null) {
+                writeCell(row.createCell(columnIndex), cells[columnIndex], streamedSheet.normalizer, outputStyles);
+            }
+        }
+
+        // Labels are applied in the same order as the usermodel engine: changes against the previous
+        // sheet first, then rows removed in the next sheet, then duplicated keys
+        Set<Integer> changedColumns = streamedSheet.changedCells.get(rowNum);
+        if (changedColumns != null) {
+            for (int columnIndex : changedColumns) {
+                Cell cell = row.getCell(columnIndex);
+                if (cell == null) {
+                    cell = row.createCell(columnIndex);
+                }
+                cell.setCellStyle(outputStyles.highlightStyles().of(cell.getCellStyle(), IndexedColors.LIGHT_YELLOW));
+                cell.setCellValue(display(streamedSheet.normalizer, cellAt(cells, columnIndex)) + " -> Cellule modifiée");
+            }
+        }
+        if (streamedSheet.addedRows.contains(rowNum)) {
+            labelRow(row, streamedSheet, cells, outputStyles, IndexedColors.LIGHT_GREEN, "Rangée ajoutée");
+        }
+        if (streamedSheet.removedRows.contains(rowNum)) {
+            labelRow(row, streamedSheet, cells, outputStyles, IndexedColors.LIGHT_TURQUOISE, "Rangée effacée");
+        }
+        if (duplicateRowNums.contains(rowNum)) {
+            labelRow(row, streamedSheet, cells, outputStyles, IndexedColors.LIGHT_ORANGE, "Clé dupliquée");
+        }
+    }
+
+
+    // Numbers, dates and booleans keep their type in the output, formulas are written back as formulas
+    private void writeCell(Cell cell, String value, CellNormalizer normalizer, OutputStyles outputStyles) {
+        switch (value.charAt(0)) {
+            case NUMBER -> cell.setCellValue(Double.parseDouble(value.substring(1)));
+            case DATE -> {
+                double serialNumber = Double.parseDouble(value.substring(1));
+                cell.setCellValue(normalizer.toDateTime(serialNumber));
+                cell.setCellStyle(serialNumber == Math.floor(serialNumber) ? outputStyles.dateStyle() : outputStyles.dateTimeStyle());
+            }
+            case BOOLEAN -> cell.setCellValue(Boolean.parseBoolean(value.substring(1)));
+            case FORMULA -> cell.setCellFormula(value.substring(1));
+            default -> cell.setCellValue(value.substring(1));
+        }
+    }
+
+
+    // The status is appended to the first key cell of the row, after the label it may already have
+    private void labelRow(Row row, StreamedSheet streamedSheet, String[] cells, OutputStyles outputStyles, IndexedColors color, String status) {
+        int keyColumn = streamedSheet.layout.keyColumns().get(0);
+        Cell keyCell = row.getCell(keyColumn);
+        if (keyCell == null) {
+            keyCell = row.createCell(keyColumn);
+        }
+        String keyValue = keyCell.getCellType() == CellType.STRING ? keyCell.getStringCellValue() : display(streamedSheet.normalizer, cellAt(cells, keyColumn));
+        for (Cell cell : row) {
+            cell.setCellStyle(outputStyles.highlightStyles().of(cell.getCellStyle(), color));
+        }
+        keyCell.setCellValue(keyValue + " -> " + status);
+    }
+
+
+    private OutputStyles createOutputStyles(Workbook workbook) throws Exception {
+        try {
+            DataFormat dataFormat = workbook.createDataFormat();
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(dataFormat.getFormat("yyyy-mm-dd"));
+            CellStyle dateTimeStyle = workbook.createCellStyle();
+            dateTimeStyle.setDataFormat(dataFormat.getFormat("yyyy-mm-dd hh:mm:ss"));
+            return new OutputStyles(new HighlightStyles(workbook), dateStyle, dateTimeStyle);
+        } catch(Exception e) {
+            throw new Exception("Exception from createOutputStyles " + e.getMessage());
+        }
+    }
+
+
+    // Same rules as SheetData.valueEquals: numbers and dates are equal within their tolerance, other values of the
+    // same type when they are the same, values of different types when they display the same text
+    private static boolean valueEquals(CellNormalizer normalizer, String cell, String otherCell) {
+        if (cell == null || otherCell == null) {
+            return cell == null && otherCell == null;
+        }
+        if (cell.equals(otherCell)) {
+            return true;
+        }
+        char type = cell.charAt(0);
+        if (type == otherCell.charAt(0)) {
+            return switch (type) {
+                case NUMBER -> normalizer.numbersEqual(Double.parseDouble(cell.substring(1)), Double.parseDouble(otherCell.substring(1)));
+                case DATE -> normalizer.datesEqual(Double.parseDouble(cell.substring(1)), Double.parseDouble(otherCell.substring(1)));
+                default -> false;
+            };
+        }
+        return display(normalizer, cell).equals(display(normalizer, otherCell));
+    }
+
+
+    // Text of a cell as displayed in the differences and keys, as in the usermodel engine
+    private static String display(CellNormalizer normalizer, String cell) {
+        if (cell == null) {
+            return "";
+        }
+        return switch (cell.charAt(0)) {
+            case NUMBER -> normalizer.formatNumber(Double.parseDouble(cell.substring(1)));
+            case DATE -> normalizer.formatDate(Double.parseDouble(cell.substring(1)));
+            default -> cell.substring(1);
+        };
+    }
+
+
+    private static void release(StreamedSheet sheet) {
+        if (sheet != null) {
+            sheet.release();
+        }
+    }
+
+
+    private static String cellAt(String[] cells, int columnIndex) {
+        return columnIndex < cells.length ? cells[columnIndex] : null;
+    }
+
+
+    // Output stage of a diff, receiving each sheet once it has been compared with its neighbours
+    private interface ComparedSheetSink {
+        void accept(StreamedSheet sheet) throws Exception;
+    }
+
+
+    // Styles shared by all sheets of the output workbook
+    private record OutputStyles(HighlightStyles highlightStyles, CellStyle dateStyle, CellStyle dateTimeStyle) {
+    }
+
+
+    private static class SheetDifferenceCounts {
+        private long addedRows;
+        private long removedRows;
+        private long changedRows;
+    }
+
+
+    private record StreamedRow(int rowNum, String[] cells) {
+    }
+
+
+    // Typed values of a sheet read through the event API, with the differences found against its neighbours.
+    // Rows are held in memory up to a budget, then written to a local file in their order and to partition files
+    // by key hash, tagged with their row number; only the row numbers of differences stay in memory.
+    private static class StreamedSheet {
+        private final String name;
+        private final SheetLayout layout;
+        private final CellNormalizer normalizer;
+        private final long memoryBudget;
+        private final ExcelToolsProperties.Spill spillProperties;
+        private final List<StreamedRow> rows = new ArrayList<>();
+        private final Map<String, StreamedRow> rowByKey = new LinkedHashMap<>();
+        private final Set<Integer> addedRows = new HashSet<>();
+        private final Set<Integer> removedRows = new HashSet<>();
+        private final Map<Integer, Set<Integer>> changedCells = new HashMap<>();
+        private final Map<String, List<Integer>> duplicateRowNums = new LinkedHashMap<>();
+        private SpilledRows spilledRows;
+        private SpilledRows partitionedRows;
+        private boolean duplicatesScanned;
+        private boolean readingFinished;
+        private int rowCount;
+        private long estimatedSize;
+        private long cellCount;
+
+        private StreamedSheet(String name, SheetLayout layout, CellNormalizer normalizer, long memoryBudget, ExcelToolsProperties.Spill spillProperties) {
+            this.name = name;
+            this.layout = layout;
+            this.normalizer = normalizer;
+            this.memoryBudget = memoryBudget;
+            this.spillProperties = spillProperties;
+        }
+
+        private boolean isSpilled() {
+            return spilledRows != null;
+        }
+
+        // Header rows are kept for the output but have no key, they are never compared. Keys are built from the
+        // displayed text of the key cells, like in the usermodel engine.
+        private String keyOf(int rowNum, String[] cells) {
+            if (rowNum < layout.headerRows()) {
+                return null;
+            }
+            String[] keyCells = new String[cells.length];
+            for (int keyColumn : layout.keyColumns()) {
+                if (keyColumn < cells.length && cells[keyColumn] != null) {
+                    keyCells[keyColumn] = display(normalizer, cells[keyColumn]);
+                }
+            }
+            return layout.keyOf(keyCells);
+        }
+
+        private void addRow(int rowNum, String[] cells) throws IOException {
+            if (isSpilled()) {
+                writeSpilledRow(rowNum, cells);
+            } else {
+                StreamedRow row = new StreamedRow(rowNum, cells);
+                String key = keyOf(rowNum, cells);
+                if (key != null) {
+                    // The last row of a key is compared, like in the usermodel engine
+                    StreamedRow previousRow = rowByKey.put(key, row);
+                    if (previousRow != null) {
+                        addDuplicate(key, previousRow.rowNum(), rowNum);
+                    }
+                }
+                rows.add(row);
+                estimatedSize += SpilledRows.estimatedSize(cells) + 64; // Row record and key map entry
+                if (estimatedSize > memoryBudget) {
+                    spill();
+                }
+            }
+            rowCount++;
+        }
+
+        // The first row of a key is only known once its second row is read
+        private void addDuplicate(String key, int previousRowNum, int rowNum) {
+            duplicateRowNums.computeIfAbsent(key, duplicateKey -> new ArrayList<>(List.of(previousRowNum))).add(rowNum);
+        }
+
+        // Moves the rows held in memory to disk, following rows are written to disk as they are read. Duplicated
+        // keys are found again when the partitions are loaded.
+        private void spill() throws IOException {
+            if (isSpilled()) {
+                return;
+            }
+            spilledRows     = new SpilledRows(spillProperties.getDirectory(), "rows", 1);
+            partitionedRows = new SpilledRows(spillProperties.getDirectory(), "keys", spillProperties.getPartitionCount());
+            for (StreamedRow row : rows) {
+                writeSpilledRow(row.rowNum(), row.cells());
+            }
+            rows.clear();
+            rowByKey.clear();
+            duplicateRowNums.clear();
+            if (readingFinished) {
+                finishReading();
+            }
+        }
+
+        private void writeSpilledRow(int rowNum, String[] cells) throws IOException {
+            spilledRows.write(rowNum, null, cells);
+            String key = keyOf(rowNum, cells);
+            if (key != null) {
+                partitionedRows.write(rowNum, key, cells);
+            }
+        }
+
+        private void finishReading() throws IOException {
+            readingFinished = true;
+            if (isSpilled()) {
+                spilledRows.finishWriting();
+                partitionedRows.finishWriting();
+            }
+        }
+
+        // Releases rows once the sheet has been compared with its neighbours, deleting its spill files
+        private void release() {
+            rows.clear();
+            rowByKey.clear();
+            try {
+                if (spilledRows != null) {
+                    spilledRows.close();
+                }
+                if (partitionedRows != null) {
+                    partitionedRows.close();
+                }
+            } catch (IOException e) {
+                log.warn("Could not delete spilled rows of sheet {}", name, e);
+            }
+        }
+    }
+
+
+    // Reads the raw value, type and style of each cell instead of the text formatted by XSSFSheetXMLHandler, so
+    // that cells are compared like the usermodel engine compares them. Rows and cells are placed by their
+    // reference, blank rows and cells being missing from the sheet.
+    private static class StreamedSheetHandler extends DefaultHandler {
+        private final StreamedSheet sheet;
+        private final StylesTable styles;
+        private final ReadOnlySharedStringsTable sharedStrings;
+        private final List<String> currentCells = new ArrayList<>();
+        private final StringBuilder value = new StringBuilder();
+        private final StringBuilder formula = new StringBuilder();
+        private StringBuilder currentText; // Null outside of values and formulas
+        private int rowNum = -1;
+        private int columnIndex = -1;
+        private String cellType;
+        private String cellStyle;
+
+        private StreamedSheetHandler(StreamedSheet sheet, StylesTable styles, ReadOnlySharedStringsTable sharedStrings) {
+            this.sheet = sheet;
+            this.styles = styles;
+            this.sharedStrings = sharedStrings;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row" -> {
+                    String rowReference = attributes.getValue("r");
+                    rowNum = rowReference != null ? Integer.parseInt(rowReference) - 1 : rowNum + 1;
+                    columnIndex = -1;
+                    currentCells.clear();
+                }
+                case "c" -> {
+                    String cellReference = attributes.getValue("r");
+                    columnIndex = cellReference != null ? new CellReference(cellReference).getCol() : columnIndex + 1;
+                    cellType  = attributes.getValue("t");
+                    cellStyle = attributes.getValue("s");
+                    value.setLength(0);
+                    formula.setLength(0);
+                }
+                case "v", "t" -> currentText = value; // Inline strings may be split in several rich text runs
+                case "f" -> currentText = formula;
+                default -> {
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] characters, int start, int length) {
+            if (currentText != null) {
+                currentText.append(characters, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "v", "t", "f" -> currentText = null;
+                case "c" -> {
+                    String cell = typedValue();
+                    if (cell != null) {
+                        while (currentCells.size() <= columnIndex) {
+                            currentCells.add(null);
+                        }
+                        currentCells.set(columnIndex, cell);
+                        sheet.cellCount++;
+                    }
+                }
+                case "row" -> {
+                    try {
+                        sheet.addRow(rowNum, currentCells.toArray(new String[0]));
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        // Formulas are compared by their text, like in the usermodel engine. Cells sharing the formula of another
+        // cell only hold a reference to it, their cached value is compared instead.
+        private String typedValue() {
+            if (!formula.isEmpty()) {
+                return FORMULA + formula.toString();
+            }
+            if (value.isEmpty()) {
+                return null;
+            }
+            String rawValue = value.toString();
+            if (cellType == null || cellType.equals("n")) {
+                double number = Double.parseDouble(rawValue);
+                XSSFCellStyle style = styles != null ? styles.getStyleAt(cellStyle != null ? Integer.parseInt(cellStyle) : 0) : null;
+                return (style != null && sheet.normalizer.isDateFormatted(style, number) ? DATE : NUMBER) + rawValue;
+            }
+            return switch (cellType) {
+                case "s" -> stringValue(sharedStrings.getItemAt(Integer.parseInt(rawValue)).getString());
+                case "b" -> BOOLEAN + String.valueOf(rawValue.equals("1"));
+                default -> stringValue(rawValue); // Inline strings, errors and cached results of string formulas
+            };
+        }
+
+        // Empty strings are blank cells, as in the usermodel engine
+        private static String stringValue(String text) {
+            return text == null || text.isEmpty() ? null : STRING + text;
+        }
+    }
+
+}
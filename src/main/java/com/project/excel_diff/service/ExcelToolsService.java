@@ -1,224 +1,678 @@
 package com.project.excel_diff.service;
 
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.CellNormalizer;
+import com.project.excel_diff.model.ColumnAlignment;
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffRecord;
+import com.project.excel_diff.model.RowKey;
+import com.project.excel_diff.model.SheetData;
+import com.project.excel_diff.model.SheetDifferences;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.ValueDictionary;
+import lombok.AllArgsConstructor;
 import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.DateUtil;
-import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.ClientAnchor;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @Service
+@AllArgsConstructor
 public class ExcelToolsService {
 
-    public ByteArrayOutputStream findDifferencesBetweenSheets(MultipartFile file) throws Exception {
-        try {
-            Workbook workbook = new XSSFWorkbook(file.getInputStream());
+    // Share of equal sampled values above which columns are the same column
+    private static final double COLUMN_MATCH_SIMILARITY = 0.5;
+    // Added to each order-keeping match, so that matching columns is preferred to leaving them inserted and removed
+    private static final double COLUMN_MATCH_BONUS = 0.01;
+    private static final int COLUMN_SAMPLE_MIN_ROWS = 32;
+    private static final int COLUMN_SAMPLE_MAX_ROWS = 1000;
+    private static final long COLUMN_SAMPLE_MAX_COMPARISONS = 20_000_000;
+
+    @Qualifier("sheetComparisonExecutor")
+    private final ExecutorService sheetComparisonExecutor;
+    private final DiffMetrics diffMetrics;
+    private final ExcelToolsProperties excelToolsProperties;
+
+
+    public void findDifferencesBetweenSheets(MultipartFile file, OutputStream outputStream) throws Exception {
+        this.findDifferencesBetweenSheets(file, SheetLayout.DEFAULT, outputStream);
+    }
+
+
+    public void findDifferencesBetweenSheets(MultipartFile file, SheetLayout layout, OutputStream outputStream) throws Exception {
+        try (InputStream inputStream = file.getInputStream()) {
+            this.findDifferencesBetweenSheets(inputStream, layout, outputStream, DiffProgressListener.NONE);
+        }
+    }
+
+
+    public void findDifferencesBetweenSheets(InputStream inputStream,
+                                             SheetLayout layout,
+                                             OutputStream outputStream,
+                                             DiffProgressListener progressListener) throws Exception {
+        DiffMetrics.CountingInputStream countingInputStream   = new DiffMetrics.CountingInputStream(inputStream);
+        DiffMetrics.CountingOutputStream countingOutputStream = new DiffMetrics.CountingOutputStream(outputStream);
+        long phaseStart = System.nanoTime();
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            if(workbook.getNumberOfSheets() > 1) {
+        try (Workbook workbook = new XSSFWorkbook(countingInputStream)) {
+            phaseStart = diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.PARSE, phaseStart);
 
-                // Extract data from file before updating
-                List<Map<String, List<String>>> excelSheetsMap = this.mapRowKeyValuesFromSheets(file);
+            int sheetCount = workbook.getNumberOfSheets();
+            if(sheetCount > 1) {
 
-                // Parse all sheets
-                for (int sheetIndex = 1; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
-                    compareSheets(workbook.getSheetAt(sheetIndex - 1),
-                                  workbook.getSheetAt(sheetIndex),
-                                  excelSheetsMap.get(sheetIndex - 1),
-                                  excelSheetsMap.get(sheetIndex));
+                ComparedWorkbook comparedWorkbook = this.compareWorkbook(workbook, layout, phaseStart);
+                List<SheetData> excelSheetsData = comparedWorkbook.sheetsData();
+                List<SheetDifferences> excelSheetsDifferences = comparedWorkbook.sheetsDifferences();
+                phaseStart = System.nanoTime();
+
+                // Highlight differences pair after pair on the calling thread, since the workbook isn't thread safe,
+                // highlight styles being shared by all sheets of the workbook
+                HighlightStyles highlightStyles = new HighlightStyles(workbook);
+                for (int sheetIndex = 1; sheetIndex < sheetCount; sheetIndex++) {
+                    highlightDifferences(highlightStyles,
+                                         workbook,
+                                         sheetIndex,
+                                         excelSheetsData.get(sheetIndex - 1),
+                                         excelSheetsData.get(sheetIndex),
+                                         excelSheetsDifferences.get(sheetIndex - 1));
+                    progressListener.sheetsProcessed(sheetIndex + 1, sheetCount);
                 }
+                highlightDuplicates(highlightStyles, workbook, excelSheetsData);
+                phaseStart = diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.STYLING, phaseStart);
+
+                // Save into outputStream an updated Excel file with highlighted and labeled differences
+                workbook.write(countingOutputStream);
+                diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.SERIALIZATION, phaseStart);
 
-                // Save into byteArrayOutputStream an updated Excel file with highlighted and labeled differences
-                workbook.write(byteArrayOutputStream);
-                workbook.close();
+                recordSizeAndChanges(excelSheetsData, excelSheetsDifferences);
             }
-            return byteArrayOutputStream;
+            diffMetrics.recordBytes(DiffEngine.USERMODEL, countingInputStream.getCount(), countingOutputStream.getCount());
         } catch (Exception e) {
             throw new Exception("Exception from findDifferencesBetweenSheets() " + e.getMessage());
         }
     }
 
 
-    private void compareSheets(Sheet previousSheet,
-                               Sheet nextSheet,
-                               Map<String, List<String>> previousSheetMap,
-                               Map<String, List<String>> nextSheetMap) throws Exception {
+    public void findDifferencesAsRecords(MultipartFile file, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        try (InputStream inputStream = file.getInputStream()) {
+            this.findDifferencesAsRecords(inputStream, layout, recordWriter);
+        }
+    }
+
+
+    // Same comparison as findDifferencesBetweenSheets, but differences are written as records: the workbook is
+    // neither styled nor written back, which are the most expensive phases for large workbooks
+    public void findDifferencesAsRecords(InputStream inputStream, SheetLayout layout, DiffRecordWriter recordWriter) throws Exception {
+        DiffMetrics.CountingInputStream countingInputStream = new DiffMetrics.CountingInputStream(inputStream);
+        long phaseStart = System.nanoTime();
+
+        try (Workbook workbook = new XSSFWorkbook(countingInputStream)) {
+            phaseStart = diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.PARSE, phaseStart);
+
+            int sheetCount = workbook.getNumberOfSheets();
+            if(sheetCount > 1) {
+                ComparedWorkbook comparedWorkbook = this.compareWorkbook(workbook, layout, phaseStart);
+                List<SheetData> excelSheetsData = comparedWorkbook.sheetsData();
+                List<SheetDifferences> excelSheetsDifferences = comparedWorkbook.sheetsDifferences();
+                phaseStart = System.nanoTime();
+
+                for (int sheetIndex = 1; sheetIndex < sheetCount; sheetIndex++) {
+                    writeRecords(workbook.getSheetName(sheetIndex - 1),
+                                 workbook.getSheetName(sheetIndex),
+                                 excelSheetsData.get(sheetIndex - 1),
+                                 excelSheetsData.get(sheetIndex),
+                                 excelSheetsDifferences.get(sheetIndex - 1),
+                                 recordWriter);
+                }
+                for (int sheetIndex = 0; sheetIndex < sheetCount; sheetIndex++) {
+                    SheetData sheetData = excelSheetsData.get(sheetIndex);
+                    for (Map.Entry<RowKey, List<Integer>> duplicate : sheetData.duplicateRowNums().entrySet()) {
+                        recordWriter.write(DiffRecord.duplicate(workbook.getSheetName(sheetIndex),
+                                                                sheetData.keyAsString(duplicate.getKey()),
+                                                                duplicate.getValue().stream().map(rowNum -> rowNum + 1).toList()));
+                    }
+                }
+                diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.SERIALIZATION, phaseStart);
+
+                recordSizeAndChanges(excelSheetsData, excelSheetsDifferences);
+            }
+            diffMetrics.recordBytes(DiffEngine.USERMODEL, countingInputStream.getCount(), 0);
+        } catch (Exception e) {
+            throw new Exception("Exception from findDifferencesAsRecords() " + e.getMessage());
+        }
+    }
+
+
+    // Parse and compare step shared by both outputs: data is extracted from the workbook before it is updated,
+    // then all pairs of consecutive sheets are compared in parallel
+    private ComparedWorkbook compareWorkbook(Workbook workbook, SheetLayout layout, long phaseStart) throws Exception {
         try {
-            // Set cell color style for the sheet
-            CellStyle addedStyle   = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.LIGHT_GREEN );
-            CellStyle removedStyle = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.LIGHT_TURQUOISE);
-            CellStyle changedStyle = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.LIGHT_YELLOW);
+            // Rows are indexed by key in the same pass as the extraction
+            List<SheetData> excelSheetsData = this.mapRowKeyValuesFromSheets(workbook, layout);
+            phaseStart = diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.EXTRACTION, phaseStart);
 
-            // Since rows can be deleted or added, we merge all keys of each sheets in one list in order to get the whole list of distinct keys
-            Set<String> allKeys = new LinkedHashSet<>(previousSheetMap.keySet());
-            allKeys.addAll(nextSheetMap.keySet());
+            // The extracted data is only read by the comparisons
+            List<Future<SheetDifferences>> comparisons = new ArrayList<>();
+            for (int sheetIndex = 1; sheetIndex < excelSheetsData.size(); sheetIndex++) {
+                SheetData previousSheetData = excelSheetsData.get(sheetIndex - 1);
+                SheetData nextSheetData     = excelSheetsData.get(sheetIndex);
+                comparisons.add(sheetComparisonExecutor.submit(() -> compareSheets(previousSheetData, nextSheetData)));
+            }
+            List<SheetDifferences> excelSheetsDifferences = new ArrayList<>();
+            for (Future<SheetDifferences> comparison : comparisons) {
+                excelSheetsDifferences.add(comparison.get());
+            }
+            diffMetrics.recordPhase(DiffEngine.USERMODEL, DiffMetrics.COMPARISON, phaseStart);
+            return new ComparedWorkbook(excelSheetsData, excelSheetsDifferences);
+        } catch(Exception e) {
+            throw new Exception("Exception from compareWorkbook() " + e.getMessage());
+        }
+    }
 
-            // Parse all rows
-            for (String key : allKeys) {
-                List<String> previousSheetRowValues = previousSheetMap.get(key);
-                List<String> nextSheetRowValues     = nextSheetMap.get(key);
 
-                // Check if row is added
-                if (previousSheetRowValues == null) {
-                    this.updateRow(nextSheet, key, addedStyle, "Rangée ajoutée");
+    private void writeRecords(String previousSheetName,
+                              String nextSheetName,
+                              SheetData previousSheetData,
+                              SheetData nextSheetData,
+                              SheetDifferences sheetDifferences,
+                              DiffRecordWriter recordWriter) throws Exception {
+        try {
+            for (RowKey key : sheetDifferences.addedKeys()) {
+                recordWriter.write(DiffRecord.added(previousSheetName, nextSheetName, nextSheetData.keyAsString(key)));
+            }
+            for (RowKey key : sheetDifferences.removedKeys()) {
+                recordWriter.write(DiffRecord.removed(previousSheetName, nextSheetName, previousSheetData.keyAsString(key)));
+            }
+            ColumnAlignment columnAlignment = sheetDifferences.columnAlignment();
+            for (int columnIndex : columnAlignment.insertedColumns()) {
+                recordWriter.write(DiffRecord.columnAdded(previousSheetName, nextSheetName, CellReference.convertNumToColString(columnIndex)));
+            }
+            for (int columnIndex : columnAlignment.removedColumns()) {
+                recordWriter.write(DiffRecord.columnRemoved(previousSheetName, nextSheetName, CellReference.convertNumToColString(columnIndex)));
+            }
+            for (int columnIndex : columnAlignment.movedColumns()) {
+                recordWriter.write(DiffRecord.columnMoved(previousSheetName,
+                                                          nextSheetName,
+                                                          CellReference.convertNumToColString(columnAlignment.previousColumn(columnIndex)),
+                                                          CellReference.convertNumToColString(columnIndex)));
+            }
+            for (Map.Entry<RowKey, List<Integer>> changedRow : sheetDifferences.changedColumns().entrySet()) {
+                int previousRowPosition = previousSheetData.rowPosition(changedRow.getKey());
+                int nextRowPosition     = nextSheetData.rowPosition(changedRow.getKey());
+                String key = nextSheetData.keyAsString(changedRow.getKey());
+                for (int columnIndex : changedRow.getValue()) {
+                    recordWriter.write(DiffRecord.changed(previousSheetName,
+                                                          nextSheetName,
+                                                          key,
+                                                          CellReference.convertNumToColString(columnIndex),
+                                                          previousSheetData.valueAsString(previousRowPosition, columnAlignment.previousColumn(columnIndex)),
+                                                          nextSheetData.valueAsString(nextRowPosition, columnIndex)));
                 }
+            }
+        } catch(Exception e) {
+            throw new Exception("Exception from writeRecords() " + e.getMessage());
+        }
+    }
+
+
+    private void recordSizeAndChanges(List<SheetData> excelSheetsData, List<SheetDifferences> excelSheetsDifferences) {
+        long rows  = 0;
+        long cells = 0;
+        for (SheetData sheetData : excelSheetsData) {
+            rows  += sheetData.rowCount();
+            cells += sheetData.rowCount() + sheetData.totalValueCount(); // Key cells and value cells
+        }
+        diffMetrics.recordSize(DiffEngine.USERMODEL, excelSheetsData.size(), rows, cells);
+
+        long addedRows   = 0;
+        long removedRows = 0;
+        long changedRows = 0;
+        for (SheetDifferences sheetDifferences : excelSheetsDifferences) {
+            addedRows   += sheetDifferences.addedKeys().size();
+            removedRows += sheetDifferences.removedKeys().size();
+            changedRows += sheetDifferences.changedColumns().size();
+        }
+        diffMetrics.recordChanges(DiffEngine.USERMODEL, addedRows, removedRows, changedRows);
+    }
+
+
+    SheetDifferences compareSheets(SheetData previousSheetData, SheetData nextSheetData) throws Exception {
+        try {
+            List<RowKey> addedKeys   = new ArrayList<>();
+            List<RowKey> removedKeys = new ArrayList<>();
+            Map<RowKey, List<Integer>> changedColumns = new LinkedHashMap<>();
+            ColumnAlignment columnAlignment = this.alignColumns(previousSheetData, nextSheetData);
+
+            // Keys of the previous sheet first, then keys only found in the next sheet, without building their union
+            for (RowKey key : previousSheetData.keys()) {
+                int previousRowPosition = previousSheetData.rowPosition(key);
+                int nextRowPosition     = nextSheetData.rowPosition(key);
+
                 // Check if row is deleted
-                else if (nextSheetRowValues == null) {
-                    this.updateRow(previousSheet, key, removedStyle, "Rangée effacée");
-                } else {
+                if (nextRowPosition < 0) {
+                    removedKeys.add(key);
+                }
+                // Skip rows whose values hash the same, most rows are unchanged from one sheet to the next. Hashes
+                // follow the column order, they can't be used once columns were inserted, removed or moved.
+                else if (!columnAlignment.isIdentity() || previousSheetData.rowHash(previousRowPosition) != nextSheetData.rowHash(nextRowPosition)) {
                     // Check if any value of the row has been modified
-                    this.compareRows(previousSheetRowValues, nextSheetRowValues, nextSheet, key, changedStyle);
+                    List<Integer> rowChangedColumns = this.compareRows(previousSheetData, previousRowPosition, nextSheetData, nextRowPosition, columnAlignment);
+                    if (!rowChangedColumns.isEmpty()) {
+                        changedColumns.put(key, rowChangedColumns);
+                    }
+                }
+            }
+            // Check if row is added
+            for (RowKey key : nextSheetData.keys()) {
+                if (previousSheetData.rowPosition(key) < 0) {
+                    addedKeys.add(key);
                 }
             }
+            return new SheetDifferences(addedKeys, removedKeys, changedColumns, columnAlignment);
         } catch(Exception e) {
             throw new Exception("Exception from compareSheets() " + e.getMessage());
         }
     }
 
 
-    private void compareRows(List<String> previousSheetRowValues,
-                             List<String> nextSheetRowValues,
-                             Sheet nextSheet,
-                             String key,
-                             CellStyle changedStyle ) throws Exception {
+    private List<Integer> compareRows(SheetData previousSheetData,
+                                      int previousRowPosition,
+                                      SheetData nextSheetData,
+                                      int nextRowPosition,
+                                      ColumnAlignment columnAlignment) throws Exception {
         try {
-            for (int columnIndex = 0; columnIndex < Math.max(previousSheetRowValues.size(),nextSheetRowValues.size()); columnIndex++) {
+            List<Integer> changedColumns = new ArrayList<>();
+            for (int nextColumn = 0; nextColumn < columnAlignment.columnCount(); nextColumn++) {
+                int previousColumn = columnAlignment.previousColumn(nextColumn);
 
-                // Check if the column has been deleted
-                String previousSheetValue = columnIndex < previousSheetRowValues.size() ? previousSheetRowValues.get(columnIndex) : "";
-                String nextSheetValue     = columnIndex < nextSheetRowValues.size()     ? nextSheetRowValues.get(columnIndex)     : "";
-
-                // If the cell has been modified
-                if (!previousSheetValue.equals(nextSheetValue)) {
-                    // Mark the cell with color highlight and label
-                    updateCell(nextSheet, key, columnIndex + 1, changedStyle);
+                // If the cell has been modified, keep its column index in the next sheet. Inserted columns have no
+                // cell to compare with, key and ignored columns are extracted as blank, they never differ.
+                if (previousColumn >= 0 && !previousSheetData.valueEquals(previousRowPosition, previousColumn, nextSheetData, nextRowPosition, nextColumn)) {
+                    changedColumns.add(nextColumn);
                 }
             }
+            return changedColumns;
         } catch(Exception e) {
             throw new Exception("Exception from compareRows() " + e.getMessage());
         }
     }
 
 
-    private List<Map<String, List<String>>> mapRowKeyValuesFromSheets(MultipartFile file) throws Exception {
-        List<Map<String, List<String>>> sheetsList = new ArrayList<>();
+    // Matches the columns of both sheets once per pair, so that an inserted or removed column doesn't flag every cell
+    // on its right as changed. Columns are matched by name when both sheets have header rows, otherwise by the share
+    // of equal values on a sample of the rows found in both sheets. Matches keeping the column order are found
+    // first, like a longest common subsequence, columns left on both sides are then matched as moved columns.
+    ColumnAlignment alignColumns(SheetData previousSheetData, SheetData nextSheetData) throws Exception {
+        try {
+            SheetLayout layout = nextSheetData.layout();
+            int columnCount = Math.max(previousSheetData.columnCount(), nextSheetData.columnCount());
+            List<Integer> previousColumns = comparedColumns(previousSheetData);
+            List<Integer> nextColumns     = comparedColumns(nextSheetData);
+            // Headers sharing no name (e.g. translated ones) tell nothing about the columns
+            boolean byHeader = false;
+            for (int previousColumn : previousColumns) {
+                for (int nextColumn : nextColumns) {
+                    byHeader |= !previousSheetData.header(previousColumn).isEmpty()
+                                && previousSheetData.header(previousColumn).equals(nextSheetData.header(nextColumn));
+                }
+            }
+
+            // Most pairs of sheets keep their columns: every column matches the column at the same index. Without
+            // names, only a different column count tells that columns were inserted or removed, so a column whose
+            // values all changed keeps its place and the pair keeps the fast path of comparing row hashes.
+            boolean sameColumns = previousSheetData.columnCount() == nextSheetData.columnCount();
+            if (sameColumns && !byHeader) {
+                return ColumnAlignment.identity(columnCount);
+            }
+            List<int[]> sampledRows = sampleCommonRows(previousSheetData, nextSheetData, previousColumns.size() * nextColumns.size());
+            for (int columnIndex = 0; columnIndex < nextSheetData.columnCount() && sameColumns; columnIndex++) {
+                sameColumns = !layout.isCompared(columnIndex)
+                              || columnSimilarity(previousSheetData, columnIndex, nextSheetData, columnIndex, byHeader, sampledRows) >= COLUMN_MATCH_SIMILARITY;
+            }
+            if (sameColumns) {
+                return ColumnAlignment.identity(columnCount);
+            }
 
-        try (Workbook workbook = new XSSFWorkbook(file.getInputStream())) {
-            for(int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
-                Map<String, List<String>> sheetMap = new LinkedHashMap<>();
-                for (Row row : workbook.getSheetAt(sheetIndex)) { // Loop over rows
-                    Cell keyCell = row.getCell(0);
-                    if (keyCell != null) {
-                        String key = convertCellValueAsString(keyCell);
-                        List<String> values = new ArrayList<>();
-                        for (int cellIndex = 1; cellIndex < row.getLastCellNum(); cellIndex++) { // Loop over cells
-                            Cell valueCell = row.getCell(cellIndex);
-                            values.add(valueCell != null ? convertCellValueAsString(valueCell) : "");
+            double[][] similarities = new double[previousColumns.size()][nextColumns.size()];
+            for (int previousIndex = 0; previousIndex < previousColumns.size(); previousIndex++) {
+                for (int nextIndex = 0; nextIndex < nextColumns.size(); nextIndex++) {
+                    similarities[previousIndex][nextIndex] = columnSimilarity(previousSheetData, previousColumns.get(previousIndex),
+                                                                              nextSheetData, nextColumns.get(nextIndex),
+                                                                              byHeader, sampledRows);
+                }
+            }
+
+            // Order-keeping matches with the highest total similarity. Columns with different names are never
+            // matched, columns of different content are, since a column whose values all changed keeps its place.
+            double[][] bestScores = new double[previousColumns.size() + 1][nextColumns.size() + 1];
+            for (int previousIndex = 1; previousIndex <= previousColumns.size(); previousIndex++) {
+                for (int nextIndex = 1; nextIndex <= nextColumns.size(); nextIndex++) {
+                    double bestScore = Math.max(bestScores[previousIndex - 1][nextIndex], bestScores[previousIndex][nextIndex - 1]);
+                    double similarity = similarities[previousIndex - 1][nextIndex - 1];
+                    if (similarity >= 0) {
+                        bestScore = Math.max(bestScore, bestScores[previousIndex - 1][nextIndex - 1] + similarity + COLUMN_MATCH_BONUS);
+                    }
+                    bestScores[previousIndex][nextIndex] = bestScore;
+                }
+            }
+            int[] matchedPreviousColumns = new int[columnCount];
+            Arrays.fill(matchedPreviousColumns, -1);
+            boolean[] previousMatched = new boolean[previousColumns.size()];
+            boolean[] nextMatched     = new boolean[nextColumns.size()];
+            for (int previousIndex = previousColumns.size(), nextIndex = nextColumns.size(); previousIndex > 0 && nextIndex > 0; ) {
+                double similarity = similarities[previousIndex - 1][nextIndex - 1];
+                if (similarity >= 0 && bestScores[previousIndex][nextIndex] == bestScores[previousIndex - 1][nextIndex - 1] + similarity + COLUMN_MATCH_BONUS) {
+                    matchedPreviousColumns[nextColumns.get(nextIndex - 1)] = previousColumns.get(previousIndex - 1);
+                    previousMatched[--previousIndex] = true;
+                    nextMatched[--nextIndex] = true;
+                } else if (bestScores[previousIndex][nextIndex] == bestScores[previousIndex - 1][nextIndex]) {
+                    previousIndex--;
+                } else {
+                    nextIndex--;
+                }
+            }
+
+            // Columns left on both sides with the same name or content moved, the best matches first
+            List<Integer> movedColumns = new ArrayList<>();
+            while (true) {
+                int bestPreviousIndex = -1;
+                int bestNextIndex = -1;
+                for (int previousIndex = 0; previousIndex < previousColumns.size(); previousIndex++) {
+                    for (int nextIndex = 0; nextIndex < nextColumns.size(); nextIndex++) {
+                        if (!previousMatched[previousIndex] && !nextMatched[nextIndex]
+                            && similarities[previousIndex][nextIndex] >= COLUMN_MATCH_SIMILARITY
+                            && (bestPreviousIndex < 0 || similarities[previousIndex][nextIndex] > similarities[bestPreviousIndex][bestNextIndex])) {
+                            bestPreviousIndex = previousIndex;
+                            bestNextIndex = nextIndex;
                         }
-                        sheetMap.put(key, values);
                     }
                 }
-                sheetsList.add(sheetMap);
+                if (bestPreviousIndex < 0) {
+                    break;
+                }
+                matchedPreviousColumns[nextColumns.get(bestNextIndex)] = previousColumns.get(bestPreviousIndex);
+                previousMatched[bestPreviousIndex] = true;
+                nextMatched[bestNextIndex] = true;
+                movedColumns.add(nextColumns.get(bestNextIndex));
             }
-            return sheetsList;
+
+            // Key and ignored columns keep their index
+            for (int columnIndex = 0; columnIndex < columnCount; columnIndex++) {
+                if (!layout.isCompared(columnIndex)) {
+                    matchedPreviousColumns[columnIndex] = columnIndex;
+                }
+            }
+            List<Integer> removedColumns  = new ArrayList<>();
+            List<Integer> insertedColumns = new ArrayList<>();
+            for (int previousIndex = 0; previousIndex < previousColumns.size(); previousIndex++) {
+                if (!previousMatched[previousIndex]) {
+                    removedColumns.add(previousColumns.get(previousIndex));
+                }
+            }
+            for (int nextIndex = 0; nextIndex < nextColumns.size(); nextIndex++) {
+                if (!nextMatched[nextIndex]) {
+                    insertedColumns.add(nextColumns.get(nextIndex));
+                }
+            }
+            Collections.sort(movedColumns);
+            return new ColumnAlignment(matchedPreviousColumns, removedColumns, insertedColumns, movedColumns);
         } catch(Exception e) {
-            throw new Exception("Exception from mapRowKeyValuesFromSheets() " + e.getMessage());
+            throw new Exception("Exception from alignColumns() " + e.getMessage());
         }
     }
 
 
-    private void updateRow(Sheet sheet, String key, CellStyle style, String status) throws Exception {
-        try {
-            for (Row row : sheet) { // Parse all rows of the sheet
-                Cell keyCell = row.getCell(0); // Get key/first cell of the row
-                if (keyCell != null && key.equals(convertCellValueAsString(keyCell))) { // Control we're highlighting the right value
-                    for (Cell cell : row) {
-                        cell.setCellStyle(style);
-                    }
-                    keyCell.setCellValue(keyCell.getStringCellValue() + " -> " + status);
+    private static List<Integer> comparedColumns(SheetData sheetData) {
+        List<Integer> comparedColumns = new ArrayList<>();
+        for (int columnIndex = 0; columnIndex < sheetData.columnCount(); columnIndex++) {
+            if (sheetData.layout().isCompared(columnIndex)) {
+                comparedColumns.add(columnIndex);
+            }
+        }
+        return comparedColumns;
+    }
+
+
+    // Row positions in both sheets of the first keys found in both, fewer of them when there are many column pairs
+    private static List<int[]> sampleCommonRows(SheetData previousSheetData, SheetData nextSheetData, int columnPairCount) {
+        int sampleSize = (int) Math.max(COLUMN_SAMPLE_MIN_ROWS, Math.min(COLUMN_SAMPLE_MAX_ROWS, COLUMN_SAMPLE_MAX_COMPARISONS / Math.max(1, columnPairCount)));
+        List<int[]> sampledRows = new ArrayList<>();
+        for (RowKey key : previousSheetData.keys()) {
+            int nextRowPosition = nextSheetData.rowPosition(key);
+            if (nextRowPosition >= 0) {
+                sampledRows.add(new int[] {previousSheetData.rowPosition(key), nextRowPosition});
+                if (sampledRows.size() == sampleSize) {
                     break;
                 }
             }
+        }
+        return sampledRows;
+    }
+
+
+    // Between 0 and 1, or -1 for columns with different names which can't be matched
+    private static double columnSimilarity(SheetData previousSheetData,
+                                           int previousColumn,
+                                           SheetData nextSheetData,
+                                           int nextColumn,
+                                           boolean byHeader,
+                                           List<int[]> sampledRows) {
+        if (byHeader) {
+            String previousHeader = previousSheetData.header(previousColumn);
+            String nextHeader     = nextSheetData.header(nextColumn);
+            if (!previousHeader.isEmpty() && !nextHeader.isEmpty()) {
+                return previousHeader.equals(nextHeader) ? 1 : -1;
+            }
+        }
+        // Cells blank in both columns are left out, they would make any two sparse columns look alike
+        int comparedValues = 0;
+        int equalValues = 0;
+        for (int[] rowPositions : sampledRows) {
+            if (previousSheetData.isBlank(rowPositions[0], previousColumn) && nextSheetData.isBlank(rowPositions[1], nextColumn)) {
+                continue;
+            }
+            comparedValues++;
+            if (previousSheetData.valueEquals(rowPositions[0], previousColumn, nextSheetData, rowPositions[1], nextColumn)) {
+                equalValues++;
+            }
+        }
+        return comparedValues > 0 ? (double) equalValues / comparedValues : 0;
+    }
+
+
+    void highlightDifferences(HighlightStyles highlightStyles,
+                              Workbook workbook,
+                              int nextSheetIndex,
+                              SheetData previousSheetData,
+                              SheetData nextSheetData,
+                              SheetDifferences sheetDifferences) throws Exception {
+        try {
+            // Highlight colors of the sheet, combined with the original style of each cell
+            IndexedColors addedColor   = IndexedColors.LIGHT_GREEN;
+            IndexedColors removedColor = IndexedColors.LIGHT_TURQUOISE;
+            IndexedColors changedColor = IndexedColors.LIGHT_YELLOW;
+
+            for (RowKey key : sheetDifferences.addedKeys()) {
+                this.updateRow(nextSheetData, nextSheetData.rowIndex().get(key), highlightStyles, addedColor, "Rangée ajoutée");
+            }
+            for (RowKey key : sheetDifferences.removedKeys()) {
+                this.updateRow(previousSheetData, previousSheetData.rowIndex().get(key), highlightStyles, removedColor, "Rangée effacée");
+            }
+            for (Map.Entry<RowKey, List<Integer>> changedRow : sheetDifferences.changedColumns().entrySet()) {
+                for (int columnIndex : changedRow.getValue()) {
+                    // Mark the cell with color highlight and label
+                    this.updateCell(nextSheetData, changedRow.getKey(), columnIndex, highlightStyles, changedColor);
+                }
+            }
+
+            // Inserted, removed and moved columns are labeled once, instead of each of their cells
+            ColumnAlignment columnAlignment = sheetDifferences.columnAlignment();
+            for (int columnIndex : columnAlignment.insertedColumns()) {
+                this.updateColumn(nextSheetData, workbook.getSheetAt(nextSheetIndex), columnIndex, highlightStyles, addedColor, "Colonne ajoutée");
+            }
+            for (int columnIndex : columnAlignment.removedColumns()) {
+                this.updateColumn(previousSheetData, workbook.getSheetAt(nextSheetIndex - 1), columnIndex, highlightStyles, removedColor, "Colonne effacée");
+            }
+            for (int columnIndex : columnAlignment.movedColumns()) {
+                String previousColumn = CellReference.convertNumToColString(columnAlignment.previousColumn(columnIndex));
+                this.updateColumn(nextSheetData, workbook.getSheetAt(nextSheetIndex), columnIndex, highlightStyles, changedColor, "Colonne déplacée depuis " + previousColumn);
+            }
         } catch(Exception e) {
-            throw new Exception("Exception from updateRow " + e.getMessage());
+            throw new Exception("Exception from highlightDifferences() " + e.getMessage());
         }
     }
 
 
-    private void updateCell(Sheet sheet, String key, int columnIndex, CellStyle style) throws Exception {
+    // Rows with a duplicated key are labeled in every sheet, the last row of a key being the one compared
+    private void highlightDuplicates(HighlightStyles highlightStyles, Workbook workbook, List<SheetData> excelSheetsData) throws Exception {
         try {
-            for (Row row : sheet) {
-                Cell keyCell = row.getCell(0);
-                if (keyCell != null && key.equals(convertCellValueAsString(keyCell))) {
-                    Cell cell = row.getCell(columnIndex);
-                    if (cell == null) {
-                        cell = row.createCell(columnIndex);
+            for (int sheetIndex = 0; sheetIndex < excelSheetsData.size(); sheetIndex++) {
+                SheetData sheetData = excelSheetsData.get(sheetIndex);
+                for (List<Integer> rowNums : sheetData.duplicateRowNums().values()) {
+                    for (int rowNum : rowNums) {
+                        this.updateRow(sheetData, workbook.getSheetAt(sheetIndex).getRow(rowNum), highlightStyles, IndexedColors.LIGHT_ORANGE, "Clé dupliquée");
                     }
-                    cell.setCellStyle(style);
-                    cell.setCellValue(this.convertCellValueAsString(cell) + " -> Cellule modifiée");
-                    break;
                 }
             }
         } catch(Exception e) {
-            throw new Exception("Exception from updateCell " + e.getMessage());
+            throw new Exception("Exception from highlightDuplicates() " + e.getMessage());
         }
     }
 
 
-    private CellStyle createColorCellStyle(Workbook workbook, IndexedColors color) throws Exception {
+    List<SheetData> mapRowKeyValuesFromSheets(Workbook workbook) throws Exception {
+        return this.mapRowKeyValuesFromSheets(workbook, SheetLayout.DEFAULT);
+    }
+
+
+    List<SheetData> mapRowKeyValuesFromSheets(Workbook workbook, SheetLayout layout) throws Exception {
+        List<SheetData> sheetsList = new ArrayList<>();
+
         try {
-            CellStyle style = workbook.createCellStyle();
-            style.setFillForegroundColor(color.getIndex());
-            style.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-            return style;
+            // Strings of all sheets share one dictionary, so equal strings get equal ids across sheets, and cell
+            // styles are shared by all sheets of the workbook
+            ValueDictionary dictionary = new ValueDictionary();
+            ExcelToolsProperties.Comparison comparison = excelToolsProperties.getComparison();
+            CellNormalizer normalizer = new CellNormalizer(comparison.getNumericTolerance(), comparison.getDateTolerance());
+            for(int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
+                SheetData sheetData = new SheetData(dictionary, layout, normalizer);
+                for (Row row : workbook.getSheetAt(sheetIndex)) { // Loop over rows, header rows and rows without a key are skipped
+                    sheetData.addRow(row);
+                }
+                sheetsList.add(sheetData);
+            }
+            return sheetsList;
         } catch(Exception e) {
-            throw new Exception("Exception from createColorCellStyle " + e.getMessage());
+            throw new Exception("Exception from mapRowKeyValuesFromSheets() " + e.getMessage());
         }
     }
 
 
-    private String convertCellValueAsString(Cell cell) throws Exception {
+    // The status is appended to the first key cell of the row
+    private void updateRow(SheetData sheetData, Row row, HighlightStyles highlightStyles, IndexedColors color, String status) throws Exception {
         try {
-            switch (cell.getCellType()) {
-                case STRING:
-                    return cell.getStringCellValue();
-                case NUMERIC:
-                    if (DateUtil.isCellDateFormatted(cell)) {
-                        return cell.getDateCellValue().toString();
-                    } else {
-                        double numericValue = cell.getNumericCellValue();
-                        if (numericValue == (int) numericValue) {
-                            return String.valueOf((int) numericValue);
-                        } else {
-                            return String.valueOf(numericValue);
-                        }
-                    }
-                case BOOLEAN:
-                    return String.valueOf(cell.getBooleanCellValue());
-                case FORMULA:
-                    return cell.getCellFormula();
-                case BLANK:
-                    return "";
-                default:
-                    return cell.toString();
+            if (row != null) {
+                // The key is read before it is replaced by its label
+                int keyColumn = sheetData.layout().keyColumns().get(0);
+                Cell keyCell = row.getCell(keyColumn);
+                if (keyCell == null) {
+                    keyCell = row.createCell(keyColumn);
+                }
+                String keyValue = sheetData.normalizer().formatCell(keyCell);
+                for (Cell cell : row) {
+                    cell.setCellStyle(highlightStyles.of(cell.getCellStyle(), color));
+                }
+                keyCell.setCellValue(keyValue + " -> " + status);
+            }
+        } catch(Exception e) {
+            throw new Exception("Exception from updateRow " + e.getMessage());
+        }
+    }
+
+
+    private void updateCell(SheetData sheetData, RowKey key, int columnIndex, HighlightStyles highlightStyles, IndexedColors color) throws Exception {
+        try {
+            Row row = sheetData.rowIndex().get(key); // Get the row holding the key without parsing the whole sheet
+            if (row != null) {
+                Cell cell = row.getCell(columnIndex);
+                if (cell == null) {
+                    cell = row.createCell(columnIndex);
+                }
+                String value = sheetData.normalizer().formatCell(cell);
+                cell.setCellStyle(highlightStyles.of(cell.getCellStyle(), color));
+                cell.setCellValue(value + " -> Cellule modifiée");
+            }
+        } catch(Exception e) {
+            throw new Exception("Exception from updateCell " + e.getMessage());
+        }
+    }
+
+
+    // The status is appended to the cell of the column in the last header row. Without header rows the first row
+    // holds data, the status is then left in a comment of its cell instead of changing its value or style.
+    private void updateColumn(SheetData sheetData, Sheet sheet, int columnIndex, HighlightStyles highlightStyles, IndexedColors color, String status) throws Exception {
+        try {
+            int headerRows = sheetData.layout().headerRows();
+            int rowNum = Math.max(0, headerRows - 1);
+            Row row = sheet.getRow(rowNum);
+            if (row == null) {
+                row = sheet.createRow(rowNum);
+            }
+            Cell cell = row.getCell(columnIndex);
+            if (cell == null) {
+                cell = row.createCell(columnIndex);
+            }
+            if (headerRows > 0) {
+                String value = sheetData.normalizer().formatCell(cell);
+                cell.setCellStyle(highlightStyles.of(cell.getCellStyle(), color));
+                cell.setCellValue(value + " -> " + status);
+                return;
+            }
+
+            // A sheet compared with both of its neighbours may get a status from each comparison
+            CreationHelper creationHelper = sheet.getWorkbook().getCreationHelper();
+            Comment comment = cell.getCellComment();
+            if (comment == null) {
+                ClientAnchor anchor = creationHelper.createClientAnchor();
+                anchor.setCol1(columnIndex);
+                anchor.setCol2(columnIndex + 2);
+                anchor.setRow1(rowNum);
+                anchor.setRow2(rowNum + 2);
+                comment = sheet.createDrawingPatriarch().createCellComment(anchor);
+                comment.setString(creationHelper.createRichTextString(status));
+                cell.setCellComment(comment);
+            } else {
+                comment.setString(creationHelper.createRichTextString(comment.getString().getString() + "\n" + status));
             }
         } catch(Exception e) {
-            throw new Exception("Exception from convertCellValueAsString " + e.getMessage());
+            throw new Exception("Exception from updateColumn " + e.getMessage());
         }
     }
 
 
+    // Extracted sheets and the differences of each pair of consecutive sheets, read by either output
+    private record ComparedWorkbook(List<SheetData> sheetsData, List<SheetDifferences> sheetsDifferences) {
+    }
+
+
 }
@@ -1,5 +1,10 @@
 package com.project.excel_diff.service;
 
+import com.project.excel_diff.model.RowKey;
+import com.project.excel_diff.model.SheetData;
+import com.project.excel_diff.model.ValueDictionary;
+import lombok.extern.slf4j.Slf4j;
+
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.DateUtil;
@@ -16,22 +21,22 @@ import org.springframework.stereotype.Service;
 import java.io.ByteArrayOutputStream;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+@Slf4j
 @Service
 public class ExcelToolsService1 {
 
 
     public ByteArrayOutputStream findDifferencesBetweenSheets(MultipartFile file) throws Exception {
 
-        try {
-            Workbook workbook = new XSSFWorkbook(file.getInputStream());
+        try (Workbook workbook = new XSSFWorkbook(file.getInputStream())) {
 
-            List<Map<String, List<String>>> excelSheetsData = this.extractSheetsDataFromFile(file);
+            // Extract data and row index of each sheet from the workbook in one pass, before updating it
+            List<SheetData> excelSheetsData = this.extractSheetsDataFromWorkbook(workbook);
 
             StringBuilder summaryToDisplay = new StringBuilder();
 
@@ -39,20 +44,18 @@ public class ExcelToolsService1 {
             for (int sheetIndex = 1; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) { /*sheetIndex < excelSheets.size()*/
                 String differencesToDisplay = compareRows(excelSheetsData.get(sheetIndex - 1),
                                                           excelSheetsData.get(sheetIndex),
-                                                          workbook.getSheetAt(sheetIndex - 1),
-                                                          workbook.getSheetAt(sheetIndex));
+                                                          workbook);
                 summaryToDisplay.append("Différences entre tab ").append(sheetIndex).append(" et tab ").append(sheetIndex + 1).append(":\n")
                         .append(differencesToDisplay)
                         .append("\n\n");
             }
 
             // Display differences as text
-            System.out.println(summaryToDisplay); // For future functionality to display text
+            log.debug("Differences found:\n{}", summaryToDisplay); // For future functionality to display text
 
             // Save into byteArrayOutputStream an updated Excel file with highlighted and labeled differences
             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
             workbook.write(byteArrayOutputStream);
-            workbook.close();
 
             return byteArrayOutputStream;
         } catch (Exception e) {
@@ -61,55 +64,53 @@ public class ExcelToolsService1 {
     }
 
 
-    private String compareRows(Map<String, List<String>> previousSheetMap,
-                               Map<String, List<String>> nextSheetMap,
-                               Sheet previousSheet,
-                               Sheet nextSheet) throws Exception {
+    private String compareRows(SheetData previousSheetData,
+                               SheetData nextSheetData,
+                               Workbook workbook) throws Exception {
 
         try {
             // StringBuilder to hold text summary of differences
             StringBuilder differencesToDisplayAsText = new StringBuilder();
 
             // Set cell color style for the sheet
-            CellStyle addedStyle   = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.GREEN );
-            CellStyle removedStyle = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.RED   );
-            CellStyle changedStyle = createColorCellStyle(nextSheet.getWorkbook(), IndexedColors.YELLOW);
+            CellStyle addedStyle   = createColorCellStyle(workbook, IndexedColors.GREEN );
+            CellStyle removedStyle = createColorCellStyle(workbook, IndexedColors.RED   );
+            CellStyle changedStyle = createColorCellStyle(workbook, IndexedColors.YELLOW);
 
             // Merge all keys of each tab in one list to get the whole list of keys
-            Set<String> allRowKeys = new LinkedHashSet<>(previousSheetMap.keySet());
-            allRowKeys.addAll(nextSheetMap.keySet());
+            Set<RowKey> allRowKeys = new LinkedHashSet<>(previousSheetData.keys());
+            allRowKeys.addAll(nextSheetData.keys());
 
-            for (String rowKey : allRowKeys) {
-                List<String> rowValuesFromPreviousSheet = previousSheetMap.get(rowKey);
-                List<String> rowValuesFromNextSheet     = nextSheetMap.get(rowKey);
+            for (RowKey rowKey : allRowKeys) {
+                int previousRowPosition = previousSheetData.rowPosition(rowKey);
+                int nextRowPosition     = nextSheetData.rowPosition(rowKey);
 
                 // Check if row is added
-                if (rowValuesFromPreviousSheet == null) {
-                    this.updateRow(nextSheet, rowKey, addedStyle, "Rangée ajoutée");
+                if (previousRowPosition < 0) {
+                    this.updateRow(nextSheetData.rowIndex(), rowKey, addedStyle, "Rangée ajoutée");
                     differencesToDisplayAsText.append("Rangée ajoutée: ")
-                                              .append(rowValuesFromNextSheet)
+                                              .append(nextSheetData.rowValuesAsStrings(nextRowPosition))
                                               .append("\n");
                 }
                 // Check if row is deleted
-                else if (rowValuesFromNextSheet == null) {
-                    this.updateRow(previousSheet, rowKey, removedStyle, "Rangée effacée");
+                else if (nextRowPosition < 0) {
+                    this.updateRow(previousSheetData.rowIndex(), rowKey, removedStyle, "Rangée effacée");
                     differencesToDisplayAsText.append("Rangée effacée: ")
-                                              .append(rowValuesFromPreviousSheet)
+                                              .append(previousSheetData.rowValuesAsStrings(previousRowPosition))
                                               .append("\n");
                 } else {
-                    // Check if any value of the row has been modified
-                    for (int columnIndex = 0; columnIndex < Math.max(rowValuesFromPreviousSheet.size(), rowValuesFromNextSheet.size()); columnIndex++) {
-                        String previousSheetValue = columnIndex < rowValuesFromPreviousSheet.size() ? rowValuesFromPreviousSheet.get(columnIndex) : ""; // Check if the column has been deleted
-                        String nextSheetValue = columnIndex < rowValuesFromNextSheet.size() ? rowValuesFromNextSheet.get(columnIndex) : "";         // Check if the column has been deleted
+                    // Check if any value of the row has been modified, missing values at the end of a row count as blank
+                    int valueCount = Math.max(previousSheetData.valueCount(previousRowPosition), nextSheetData.valueCount(nextRowPosition));
+                    for (int columnIndex = 0; columnIndex < valueCount; columnIndex++) {
                         // If the cell has been modified
-                        if (!previousSheetValue.equals(nextSheetValue)) {
-                            updateCell(nextSheet, rowKey, columnIndex + 1, changedStyle); // Mark the cell with color highlight and label
+                        if (!previousSheetData.valueEquals(previousRowPosition, nextSheetData, nextRowPosition, columnIndex)) {
+                            updateCell(nextSheetData.rowIndex(), rowKey, columnIndex, changedStyle); // Mark the cell with color highlight and label
                             differencesToDisplayAsText.append("Colonne ") // Prepare a text to summarize change details
-                                                      .append(columnIndex + 1)
+                                                      .append(columnIndex)
                                                       .append(" changée de '")
-                                                      .append(previousSheetValue)
+                                                      .append(previousSheetData.valueAsString(previousRowPosition, columnIndex))
                                                       .append("' à '")
-                                                      .append(nextSheetValue)
+                                                      .append(nextSheetData.valueAsString(nextRowPosition, columnIndex))
                                                       .append("'.\n");
                         }
                     }
@@ -123,45 +124,35 @@ public class ExcelToolsService1 {
 
 
 
-    private List<Map<String, List<String>>> extractSheetsDataFromFile(MultipartFile file) throws Exception {
-        List<Map<String, List<String>>> excelSheets = new ArrayList<>();
+    private List<SheetData> extractSheetsDataFromWorkbook(Workbook workbook) throws Exception {
+        List<SheetData> excelSheets = new ArrayList<>();
 
-        try (Workbook workbook = new XSSFWorkbook(file.getInputStream())) {
+        try {
+            ValueDictionary dictionary = new ValueDictionary(); // Shared by all tabs to compare strings by id
             for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
-                Map<String, List<String>> sheetData = new LinkedHashMap<>();
+                SheetData sheetData = new SheetData(dictionary);
                 Sheet sheet = workbook.getSheetAt(sheetIndex);
-                for (Row row : sheet) { // Loop over rows
-                    Cell keyCell = row.getCell(0);
-                    if (keyCell != null) {
-                        String key = convertCellValueAsString(keyCell);
-                        List<String> values = new ArrayList<>();
-                        for (int cellIndex = 1; cellIndex < row.getLastCellNum(); cellIndex++) { // Loop over cells
-                            Cell valueCell = row.getCell(cellIndex);
-                            values.add(valueCell != null ? convertCellValueAsString(valueCell) : "");
-                        }
-                        sheetData.put(key, values);
-                    }
+                for (Row row : sheet) { // Loop over rows, the key being the first cell
+                    sheetData.addRow(row);
                 }
                 excelSheets.add(sheetData);
             }
             return excelSheets;
         } catch(Exception e) {
-            throw new Exception("Exception from extractSheetsDataFromFile() " + e.getMessage());
+            throw new Exception("Exception from extractSheetsDataFromWorkbook() " + e.getMessage());
         }
     }
 
 
-    private void updateRow(Sheet sheet, String key, CellStyle style, String status) throws Exception {
+    private void updateRow(Map<RowKey, Row> sheetRowIndex, RowKey key, CellStyle style, String status) throws Exception {
         try {
-            for (Row row : sheet) { // Parse all rows of the sheet
-                Cell keyCell = row.getCell(0); // Get key/first cell of the row
-                if (keyCell != null && key.equals(convertCellValueAsString(keyCell))) { // Control we're highlighting the right value
-                    for (Cell cell : row) {
-                        cell.setCellStyle(style);
-                    }
-                    keyCell.setCellValue(keyCell.getStringCellValue() + " -> " + status);
-                    break;
+            Row row = sheetRowIndex.get(key); // Get the row holding the key without parsing the whole sheet
+            if (row != null) {
+                for (Cell cell : row) {
+                    cell.setCellStyle(style);
                 }
+                Cell keyCell = row.getCell(0);
+                keyCell.setCellValue(keyCell.getStringCellValue() + " -> " + status);
             }
         } catch(Exception e) {
             throw new Exception("Exception from updateRow " + e.getMessage());
@@ -169,19 +160,16 @@ public class ExcelToolsService1 {
     }
 
 
-    private void updateCell(Sheet sheet, String key, int columnIndex, CellStyle style) throws Exception {
+    private void updateCell(Map<RowKey, Row> sheetRowIndex, RowKey key, int columnIndex, CellStyle style) throws Exception {
         try {
-            for (Row row : sheet) {
-                Cell keyCell = row.getCell(0);
-                if (keyCell != null && key.equals(convertCellValueAsString(keyCell))) {
-                    Cell cell = row.getCell(columnIndex);
-                    if (cell == null) {
-                        cell = row.createCell(columnIndex);
-                    }
-                    cell.setCellStyle(style);
-                    cell.setCellValue(this.convertCellValueAsString(cell) + " -> Cellule modifiée");
-                    break;
+            Row row = sheetRowIndex.get(key);
+            if (row != null) {
+                Cell cell = row.getCell(columnIndex);
+                if (cell == null) {
+                    cell = row.createCell(columnIndex);
                 }
+                cell.setCellStyle(style);
+                cell.setCellValue(this.convertCellValueAsString(cell) + " -> Cellule modifiée");
             }
         } catch(Exception e) {
             throw new Exception("Exception from updateCell " + e.getMessage());
@@ -0,0 +1,42 @@
+package com.project.excel_diff.service;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Highlight styles of a workbook, one per original cell style and highlight color, shared by every pair of sheets.
+// A highlighted cell keeps the number format, font, borders and alignment of its original style, and the styles
+// table only grows by the combinations actually used instead of three styles per pair of sheets.
+class HighlightStyles {
+
+    private final Workbook workbook;
+    private final Map<Integer, CellStyle> stylesByKey = new HashMap<>();
+    private final Map<Short, Short> originalStyleIndexes = new HashMap<>();
+
+
+    HighlightStyles(Workbook workbook) {
+        this.workbook = workbook;
+    }
+
+
+    // A cell highlighted again (e.g. a changed cell of a duplicated row) gets its original style with the new color
+    CellStyle of(CellStyle cellStyle, IndexedColors color) {
+        short originalStyleIndex = originalStyleIndexes.getOrDefault(cellStyle.getIndex(), cellStyle.getIndex());
+        int key = (originalStyleIndex & 0xFFFF) << 16 | color.getIndex();
+        CellStyle style = stylesByKey.get(key);
+        if (style == null) {
+            style = workbook.createCellStyle();
+            style.cloneStyleFrom(workbook.getCellStyleAt(originalStyleIndex));
+            style.setFillForegroundColor(color.getIndex());
+            style.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+            stylesByKey.put(key, style);
+            originalStyleIndexes.put(style.getIndex(), originalStyleIndex);
+        }
+        return style;
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.project.excel_diff.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Pulls the formatted cells of a sheet one row at a time, so that two sheets can be read side by side
+interface RowReader extends Closeable {
+
+    // Name of the sheet being read, as reported in the differences
+    String name();
+
+    // Cells of the next row indexed by column, null for blank cells, or null once the sheet is read
+    String[] next() throws IOException;
+
+    // 0-based number of the row last returned by next(). Rows missing from a sheet (e.g. blank rows of a
+    // workbook) are not returned, the next row keeping its own number.
+    int rowNum();
+
+}
@@ -0,0 +1,90 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import lombok.AllArgsConstructor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+// Opens the reader matching the content of a file, whatever its name: xlsx files are zip packages read through
+// StAX, gzip files are inflated on the fly as CSV, other files are memory mapped CSV. Every reader hands the same
+// formatted cells to the engines comparing two files, none of them loads a workbook.
+@Service
+@AllArgsConstructor
+public class SheetReaders {
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final ExcelToolsProperties excelToolsProperties;
+    @Qualifier("sheetComparisonExecutor")
+    private final ExecutorService sheetComparisonExecutor;
+
+
+    // Header rows are told by their row number, see ExcelJoinToolsService.nextKeyedRow
+    RowReader open(ExcelJoinToolsService.SheetSource source) throws Exception {
+        int chunkSize = chunkSize(excelToolsProperties);
+        int chunksAhead = chunksAhead(excelToolsProperties);
+        return switch (SheetFormat.of(source.file())) {
+            case XLSX -> new XlsxRowReader(source.file(), source.sheetName());
+            case GZIP_CSV -> CsvRowReader.streamed(new GZIPInputStream(Files.newInputStream(source.file()), GZIP_BUFFER_SIZE),
+                                                   csvName(source.fileName()),
+                                                   sheetComparisonExecutor,
+                                                   chunksAhead,
+                                                   chunkSize);
+            case CSV -> CsvRowReader.mapped(source.file(), source.fileName(), sheetComparisonExecutor, chunksAhead, chunkSize);
+        };
+    }
+
+
+    private static int chunkSize(ExcelToolsProperties excelToolsProperties) {
+        return (int) Math.max(1, Math.min(excelToolsProperties.getCsv().getChunkSize().toBytes(), Integer.MAX_VALUE));
+    }
+
+
+    // Chunks parsed ahead of the one being read, within the read-ahead budget and by no more threads than the pool
+    private static int chunksAhead(ExcelToolsProperties excelToolsProperties) {
+        long heldChunks = excelToolsProperties.getCsv().getReadAhead().toBytes() / chunkSize(excelToolsProperties);
+        return (int) Math.max(1, Math.min(excelToolsProperties.getComparison().getPoolSize(), heldChunks - 1));
+    }
+
+
+    // Bytes of CSV chunks a reader holds at once, see DiffAdmission.estimatedMegabytes
+    static long readAheadBytes(ExcelToolsProperties excelToolsProperties) {
+        return (chunksAhead(excelToolsProperties) + 1L) * chunkSize(excelToolsProperties);
+    }
+
+
+    // A CSV file has a single sheet named after the file, without the extension of the compression
+    private static String csvName(String fileName) {
+        return fileName != null && fileName.toLowerCase().endsWith(".gz") ? fileName.substring(0, fileName.length() - 3) : fileName;
+    }
+
+
+    enum SheetFormat {
+        XLSX,
+        GZIP_CSV,
+        CSV;
+
+        // Told by the magic bytes at the start of the file, uploads being named freely
+        static SheetFormat of(Path file) throws IOException {
+            byte[] magic;
+            try (InputStream input = Files.newInputStream(file)) {
+                magic = input.readNBytes(4);
+            }
+            if (magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+                return XLSX;
+            }
+            if (magic.length >= 2 && magic[0] == (byte) 0x1F && magic[1] == (byte) 0x8B) {
+                return GZIP_CSV;
+            }
+            return CSV;
+        }
+    }
+
+}
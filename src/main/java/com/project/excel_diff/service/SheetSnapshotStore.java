@@ -0,0 +1,211 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.SheetSnapshot;
+import lombok.AllArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+// Snapshots of sheets kept in a local directory: <id>.json holds the metadata, <id>.rows the rows. Each row is
+// written as its key, a 64-bit hash of its compared cells, the length of its cell block, then the cell block: cell
+// count, then length and UTF-8 bytes of each cell (-1 for blank cells). Keys and hashes can be read without decoding
+// the cells, which are only read for rows whose hash differs.
+@Service
+@AllArgsConstructor
+public class SheetSnapshotStore {
+
+    private final ExcelToolsProperties excelToolsProperties;
+    private final ObjectMapper objectMapper;
+
+
+    public String newSnapshotId() {
+        return UUID.randomUUID().toString();
+    }
+
+
+    // The snapshot becomes visible once the writer is committed
+    public Writer create(String snapshotId, String fileName, String sheetName, SheetLayout layout) throws IOException {
+        return new Writer(new SheetSnapshot(snapshotId, fileName, sheetName, layout, 0, Instant.now()));
+    }
+
+
+    public Optional<SheetSnapshot> getSnapshot(String snapshotId) throws IOException {
+        Path metadataFile = metadataFile(snapshotId);
+        if (!Files.exists(metadataFile)) {
+            return Optional.empty();
+        }
+        return Optional.of(objectMapper.readValue(metadataFile.toFile(), SheetSnapshot.class));
+    }
+
+
+    public Reader open(SheetSnapshot snapshot) throws IOException {
+        return new Reader(snapshot);
+    }
+
+
+    public boolean delete(String snapshotId) throws IOException {
+        boolean deleted = Files.deleteIfExists(metadataFile(snapshotId));
+        Files.deleteIfExists(rowsFile(snapshotId));
+        return deleted;
+    }
+
+
+    // Snapshot ids are generated UUIDs, anything else could point outside of the directory
+    private Path metadataFile(String snapshotId) {
+        return excelToolsProperties.getSnapshots().getDirectory().resolve(UUID.fromString(snapshotId) + ".json");
+    }
+
+
+    private Path rowsFile(String snapshotId) {
+        return excelToolsProperties.getSnapshots().getDirectory().resolve(UUID.fromString(snapshotId) + ".rows");
+    }
+
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        return length < 0 ? null : new String(input.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+
+    // Writes the rows of a new snapshot in a temporary file, moved with its metadata into the store on commit
+    public class Writer implements Closeable {
+        private final SheetSnapshot snapshot;
+        private final Path temporaryFile;
+        private final DataOutputStream output;
+        private final ByteArrayOutputStream cellBlock = new ByteArrayOutputStream();
+        private final DataOutputStream cellBlockOutput = new DataOutputStream(cellBlock);
+        private int rowCount;
+        private boolean committed;
+
+        private Writer(SheetSnapshot snapshot) throws IOException {
+            Path directory = Files.createDirectories(excelToolsProperties.getSnapshots().getDirectory());
+            this.snapshot      = snapshot;
+            this.temporaryFile = Files.createTempFile(directory, "snapshot-", ".tmp");
+            this.output        = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)));
+        }
+
+        public void write(String key, long rowHash, String[] cells) throws IOException {
+            cellBlock.reset();
+            cellBlockOutput.writeInt(cells.length);
+            for (String cell : cells) {
+                writeString(cellBlockOutput, cell);
+            }
+            writeString(output, key);
+            output.writeLong(rowHash);
+            output.writeInt(cellBlock.size());
+            cellBlock.writeTo(output);
+            rowCount++;
+        }
+
+        public SheetSnapshot commit() throws IOException {
+            output.close();
+            SheetSnapshot committedSnapshot = new SheetSnapshot(snapshot.snapshotId(),
+                                                                snapshot.fileName(),
+                                                                snapshot.sheetName(),
+                                                                snapshot.layout(),
+                                                                rowCount,
+                                                                snapshot.createdAt());
+            // Rows are moved first, the metadata file is what makes the snapshot visible
+            Files.move(temporaryFile, rowsFile(snapshot.snapshotId()), StandardCopyOption.REPLACE_EXISTING);
+            Path temporaryMetadataFile = Files.createTempFile(temporaryFile.getParent(), "snapshot-", ".tmp");
+            objectMapper.writeValue(temporaryMetadataFile.toFile(), committedSnapshot);
+            Files.move(temporaryMetadataFile, metadataFile(snapshot.snapshotId()), StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            return committedSnapshot;
+        }
+
+        // A snapshot which was not committed is discarded
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                output.close();
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+
+
+    // Reads the rows of a snapshot in the order they were written, their cells being decoded on demand
+    public class Reader implements Closeable {
+        private final DataInputStream input;
+        private final int rowCount;
+        private int rowsRead;
+        private String key;
+        private long rowHash;
+        private int cellBlockLength;
+        private boolean cellsRead = true;
+
+        private Reader(SheetSnapshot snapshot) throws IOException {
+            this.input    = new DataInputStream(new BufferedInputStream(Files.newInputStream(rowsFile(snapshot.snapshotId()))));
+            this.rowCount = snapshot.rowCount();
+        }
+
+        // Moves to the next row, returns false after the last one
+        public boolean next() throws IOException {
+            if (!cellsRead) {
+                input.skipNBytes(cellBlockLength);
+                cellsRead = true;
+            }
+            if (rowsRead == rowCount) {
+                return false;
+            }
+            rowsRead++;
+            key             = readString(input);
+            rowHash         = input.readLong();
+            cellBlockLength = input.readInt();
+            cellsRead       = false;
+            return true;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long rowHash() {
+            return rowHash;
+        }
+
+        // Cells of the current row, read at most once
+        public String[] cells() throws IOException {
+            String[] cells = new String[input.readInt()];
+            for (int columnIndex = 0; columnIndex < cells.length; columnIndex++) {
+                cells[columnIndex] = readString(input);
+            }
+            cellsRead = true;
+            return cells;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+}
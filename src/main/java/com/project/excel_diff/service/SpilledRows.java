@@ -0,0 +1,146 @@
+package com.project.excel_diff.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Rows written to local files, split by hash of their key when there is more than one partition. Each row is
+// written as its row number, the cell count, then length and UTF-8 bytes of each cell
+// (-1 for blank cells). Files are deleted when closed.
+class SpilledRows implements Closeable {
+
+    private final Path[] files;
+    private final DataOutputStream[] outputs;
+    private final int[] rowCounts;
+
+
+    SpilledRows(Path directory, String prefix, int partitionCount) throws IOException {
+        this.files     = new Path[partitionCount];
+        this.outputs   = new DataOutputStream[partitionCount];
+        this.rowCounts = new int[partitionCount];
+        Files.createDirectories(directory);
+        try {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                files[partition]   = Files.createTempFile(directory, prefix + "-" + partition + "-", ".rows");
+                outputs[partition] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[partition])));
+            }
+        } catch (IOException e) {
+            // The caller gets no instance to close, files created before the failure are deleted here
+            close();
+            throw e;
+        }
+    }
+
+
+    // Rough heap size of a row held as a String array, used to keep rows in memory within a budget
+    static long estimatedSize(String[] cells) {
+        long size = 16 + 4L * cells.length;
+        for (String cell : cells) {
+            if (cell != null) {
+                size += 40 + cell.length();
+            }
+        }
+        return size;
+    }
+
+
+    int partitionCount() {
+        return files.length;
+    }
+
+
+    // The key only picks the partition of the row, it may be null when there is a single partition
+    void write(int rowNum, String key, String[] cells) throws IOException {
+        int partition = files.length == 1 ? 0 : Math.floorMod(key.hashCode(), files.length);
+        DataOutputStream output = outputs[partition];
+        output.writeInt(rowNum);
+        output.writeInt(cells.length);
+        for (String cell : cells) {
+            if (cell == null) {
+                output.writeInt(-1);
+            } else {
+                byte[] bytes = cell.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+        rowCounts[partition]++;
+    }
+
+
+    // Flushes written rows, no row can be written afterwards
+    void finishWriting() throws IOException {
+        for (DataOutputStream output : outputs) {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+
+    Reader open(int partition) throws IOException {
+        return new Reader(partition);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        finishWriting();
+        for (Path file : files) {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+
+    // Reads the rows of a partition in the order they were written
+    class Reader implements RowReader {
+        private final int partition;
+        private final DataInputStream input;
+        private int rowsRead;
+        private int rowNum;
+
+        private Reader(int partition) throws IOException {
+            this.partition = partition;
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(files[partition])));
+        }
+
+        @Override
+        public String name() {
+            return files[partition].getFileName().toString();
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            if (rowsRead == rowCounts[partition]) {
+                return null;
+            }
+            rowsRead++;
+            rowNum = input.readInt();
+            String[] cells = new String[input.readInt()];
+            for (int columnIndex = 0; columnIndex < cells.length; columnIndex++) {
+                int length = input.readInt();
+                cells[columnIndex] = length < 0 ? null : new String(input.readNBytes(length), StandardCharsets.UTF_8);
+            }
+            return cells;
+        }
+
+        @Override
+        public int rowNum() {
+            return rowNum;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+}
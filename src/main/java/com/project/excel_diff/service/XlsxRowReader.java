@@ -0,0 +1,198 @@
+package com.project.excel_diff.service;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads one sheet of a workbook with a StAX parser, formatting values like the streaming engine does with
+// XSSFSheetXMLHandler. Unlike the SAX handler, rows are pulled by the caller instead of being pushed.
+class XlsxRowReader implements RowReader {
+
+    private final OPCPackage opcPackage;
+    private final ReadOnlySharedStringsTable sharedStrings;
+    private final StylesTable styles;
+    private final DataFormatter dataFormatter = new DataFormatter();
+    private final String name;
+    private final InputStream sheetInputStream;
+    private final XMLStreamReader xmlReader;
+    private final List<String> currentCells = new ArrayList<>();
+    private int rowNum = -1;
+
+
+    // Opens the sheet with the given name, or the first sheet when no name is given
+    XlsxRowReader(Path file, String sheetName) throws Exception {
+        this.opcPackage = OPCPackage.open(file.toFile(), PackageAccess.READ);
+        try {
+            XSSFReader xssfReader = new XSSFReader(opcPackage);
+            this.sharedStrings = new ReadOnlySharedStringsTable(opcPackage);
+            this.styles = xssfReader.getStylesTable();
+
+            XSSFReader.SheetIterator sheetIterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+            InputStream selectedSheet = null;
+            while (selectedSheet == null && sheetIterator.hasNext()) {
+                InputStream sheet = sheetIterator.next();
+                if (sheetName == null || sheetName.equals(sheetIterator.getSheetName())) {
+                    selectedSheet = sheet;
+                } else {
+                    sheet.close();
+                }
+            }
+            if (selectedSheet == null) {
+                throw new IllegalArgumentException("Sheet " + sheetName + " not found");
+            }
+            this.name = sheetIterator.getSheetName();
+            this.sheetInputStream = selectedSheet;
+            this.xmlReader = XMLHelper.newXMLInputFactory().createXMLStreamReader(selectedSheet);
+        } catch (Exception e) {
+            opcPackage.revert();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+
+    @Override
+    public String[] next() throws IOException {
+        try {
+            int columnIndex = 0;
+            String cellType = null;
+            String cellStyle = null;
+            String rawValue = null;
+            StringBuilder inlineValue = null;
+
+            while (xmlReader.hasNext()) {
+                int event = xmlReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xmlReader.getLocalName()) {
+                        case "row" -> {
+                            // Blank rows are left out of the sheet, rows are numbered by their reference
+                            String rowReference = xmlReader.getAttributeValue(null, "r");
+                            rowNum = rowReference != null ? Integer.parseInt(rowReference) - 1 : rowNum + 1;
+                            currentCells.clear();
+                        }
+                        case "c" -> {
+                            String cellReference = xmlReader.getAttributeValue(null, "r");
+                            columnIndex = cellReference != null ? new CellReference(cellReference).getCol() : currentCells.size();
+                            cellType    = xmlReader.getAttributeValue(null, "t");
+                            cellStyle   = xmlReader.getAttributeValue(null, "s");
+                            rawValue    = null;
+                            inlineValue = null;
+                        }
+                        case "v" -> rawValue = xmlReader.getElementText();
+                        case "t" -> {
+                            // Text of an inline string, possibly split in rich text runs
+                            if (inlineValue == null) {
+                                inlineValue = new StringBuilder();
+                            }
+                            inlineValue.append(xmlReader.getElementText());
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (xmlReader.getLocalName()) {
+                        case "c" -> {
+                            String formattedValue = formatValue(cellType, cellStyle, rawValue, inlineValue);
+                            if (formattedValue != null) {
+                                while (currentCells.size() <= columnIndex) {
+                                    currentCells.add(null);
+                                }
+                                currentCells.set(columnIndex, formattedValue);
+                            }
+                        }
+                        case "row" -> {
+                            return currentCells.toArray(new String[0]);
+                        }
+                        case "sheetData" -> {
+                            return null;
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Exception from next() " + e.getMessage(), e);
+        }
+    }
+
+
+    @Override
+    public int rowNum() {
+        return rowNum;
+    }
+
+
+    private String formatValue(String cellType, String cellStyle, String rawValue, StringBuilder inlineValue) {
+        if (inlineValue != null && "inlineStr".equals(cellType)) {
+            return inlineValue.toString();
+        }
+        if (rawValue == null) {
+            return null;
+        }
+        if (cellType == null || cellType.equals("n")) {
+            return formatNumber(cellStyle, rawValue);
+        }
+        return switch (cellType) {
+            case "s" -> sharedStrings.getItemAt(Integer.parseInt(rawValue)).getString();
+            case "b" -> rawValue.equals("1") ? "TRUE" : "FALSE";
+            case "e" -> "ERROR:" + rawValue;
+            default -> rawValue; // Cached result of a string formula
+        };
+    }
+
+
+    private String formatNumber(String cellStyle, String rawValue) {
+        XSSFCellStyle style = null;
+        if (cellStyle != null) {
+            style = styles.getStyleAt(Integer.parseInt(cellStyle));
+        } else if (styles.getNumCellStyles() > 0) {
+            style = styles.getStyleAt(0);
+        }
+        if (style == null) {
+            return rawValue;
+        }
+        short formatIndex = style.getDataFormat();
+        String formatString = style.getDataFormatString();
+        if (formatString == null) {
+            formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
+        }
+        return formatString != null ? dataFormatter.formatRawCellContents(Double.parseDouble(rawValue), formatIndex, formatString) : rawValue;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            xmlReader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Exception from close() " + e.getMessage(), e);
+        } finally {
+            sheetInputStream.close();
+            opcPackage.revert(); // Read-only package, nothing to save
+        }
+    }
+
+}
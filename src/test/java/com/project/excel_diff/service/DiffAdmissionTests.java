@@ -0,0 +1,57 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffEngine;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DiffAdmissionTests {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+
+    @Test
+    void diffsBeyondTheConcurrencyLimitAreRejectedUntilOneEnds() {
+        ExcelToolsProperties excelToolsProperties = properties(1, DataSize.ofMegabytes(100));
+        DiffAdmission diffAdmission = new DiffAdmission(excelToolsProperties);
+
+        DiffAdmission.Permit permit = diffAdmission.admit(MEGABYTE, DiffEngine.USERMODEL);
+        assertThrows(RejectedExecutionException.class, () -> diffAdmission.admit(MEGABYTE, DiffEngine.USERMODEL));
+
+        permit.close();
+        permit.close();
+        diffAdmission.admit(MEGABYTE, DiffEngine.USERMODEL).close();
+    }
+
+
+    @Test
+    void diffsBeyondTheMemoryBudgetAreRejectedUntilOneEnds() {
+        ExcelToolsProperties excelToolsProperties = properties(4, DataSize.ofMegabytes(10));
+        DiffAdmission diffAdmission = new DiffAdmission(excelToolsProperties);
+
+        // A diff bigger than the whole budget still runs, alone
+        assertEquals(10, diffAdmission.estimatedMegabytes(100 * MEGABYTE, DiffEngine.USERMODEL));
+        DiffAdmission.Permit permit = diffAdmission.admit(6 * MEGABYTE, DiffEngine.USERMODEL);
+        assertThrows(RejectedExecutionException.class, () -> diffAdmission.admit(6 * MEGABYTE, DiffEngine.USERMODEL));
+
+        permit.close();
+        diffAdmission.admit(6 * MEGABYTE, DiffEngine.USERMODEL).close();
+    }
+
+
+    private ExcelToolsProperties properties(int maxConcurrentDiffs, DataSize memoryBudget) {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getAdmission().setMaxConcurrentDiffs(maxConcurrentDiffs);
+        excelToolsProperties.getAdmission().setMemoryBudget(memoryBudget);
+        excelToolsProperties.getAdmission().setMemoryPerUploadByte(1);
+        excelToolsProperties.getAdmission().setQueueTimeout(Duration.ofMillis(10));
+        return excelToolsProperties;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffJob;
+import com.project.excel_diff.model.DiffJobStatus;
+import com.project.excel_diff.model.SheetLayout;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class DiffJobServiceTests {
+
+    @Autowired
+    private DiffJobService diffJobService;
+
+
+    @Test
+    void submitJobRunsDiffInBackgroundAndKeepsResult() throws Exception {
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        try (Workbook workbook = new XSSFWorkbook()) {
+            workbook.createSheet("tab1").createRow(0).createCell(0).setCellValue("A");
+            workbook.createSheet("tab2").createRow(0).createCell(0).setCellValue("B");
+            workbook.write(upload);
+        }
+        MockMultipartFile file = new MockMultipartFile("file", "input.xlsx", null, upload.toByteArray());
+
+        DiffJob job = diffJobService.submitJob(file, DiffEngine.USERMODEL, SheetLayout.DEFAULT);
+        for (int attempt = 0; attempt < 100 && job.getFinishedAt() == null; attempt++) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(DiffJobStatus.DONE, job.getStatus());
+        assertEquals(2, job.getSheetsProcessed());
+        assertEquals(2, job.getSheetCount());
+        assertTrue(Files.size(job.getResultFile()) > 0);
+        assertTrue(Files.notExists(job.getUploadFile()));
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.project.excel_diff.service;
+
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.DiffEngine;
+import com.project.excel_diff.model.DiffOptions;
+import com.project.excel_diff.model.DiffOutput;
+import com.project.excel_diff.model.SheetLayout;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiffResultCacheTests {
+
+    private static final DiffOptions OPTIONS = new DiffOptions(DiffEngine.USERMODEL, DiffOutput.XLSX, SheetLayout.DEFAULT);
+
+
+    @Test
+    void recordedResultIsReturnedForTheSameKeyOnly() throws Exception {
+        DiffResultCache diffResultCache = new DiffResultCache(new ExcelToolsProperties());
+        DiffResultCache.CacheKey key = new DiffResultCache.CacheKey("digest", OPTIONS);
+
+        assertFalse(diffResultCache.copyTo(key, new ByteArrayOutputStream()));
+        record(diffResultCache, key, new byte[] {1, 2, 3});
+
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        assertTrue(diffResultCache.copyTo(key, cached));
+        assertArrayEquals(new byte[] {1, 2, 3}, cached.toByteArray());
+        assertFalse(diffResultCache.copyTo(new DiffResultCache.CacheKey("digest", new DiffOptions(DiffEngine.STREAMING, DiffOutput.XLSX, SheetLayout.DEFAULT)), cached));
+        assertEquals(1, diffResultCache.getHits());
+        assertEquals(2, diffResultCache.getMisses());
+    }
+
+
+    @Test
+    void leastRecentlyUsedResultIsEvictedOrSpilledBeyondMaxSize(@TempDir Path spillDirectory) throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getCache().setMaxSize(DataSize.ofBytes(4));
+        DiffResultCache diffResultCache = new DiffResultCache(excelToolsProperties);
+        DiffResultCache.CacheKey firstKey = new DiffResultCache.CacheKey("first", OPTIONS);
+        DiffResultCache.CacheKey secondKey = new DiffResultCache.CacheKey("second", OPTIONS);
+
+        record(diffResultCache, firstKey, new byte[] {1, 2, 3});
+        record(diffResultCache, secondKey, new byte[] {4, 5, 6});
+        assertFalse(diffResultCache.copyTo(firstKey, new ByteArrayOutputStream()));
+        assertTrue(diffResultCache.copyTo(secondKey, new ByteArrayOutputStream()));
+        assertEquals(1, diffResultCache.getEvictions());
+
+        excelToolsProperties.getCache().setSpillDirectory(spillDirectory);
+        record(diffResultCache, firstKey, new byte[] {1, 2, 3});
+        ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+        assertTrue(diffResultCache.copyTo(secondKey, spilled));
+        assertArrayEquals(new byte[] {4, 5, 6}, spilled.toByteArray());
+    }
+
+
+    @Test
+    void missingSpilledResultIsAMissWithoutWritingAnything(@TempDir Path spillDirectory) throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getCache().setMaxSize(DataSize.ofBytes(4));
+        excelToolsProperties.getCache().setSpillDirectory(spillDirectory);
+        DiffResultCache diffResultCache = new DiffResultCache(excelToolsProperties);
+        DiffResultCache.CacheKey firstKey = new DiffResultCache.CacheKey("first", OPTIONS);
+
+        record(diffResultCache, firstKey, new byte[] {1, 2, 3});
+        record(diffResultCache, new DiffResultCache.CacheKey("second", OPTIONS), new byte[] {4, 5, 6});
+        try (Stream<Path> spilledResults = Files.list(spillDirectory)) {
+            for (Path spilledResult : spilledResults.toList()) {
+                Files.delete(spilledResult);
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertFalse(diffResultCache.copyTo(firstKey, output));
+        assertEquals(0, output.size());
+        assertFalse(diffResultCache.copyTo(firstKey, output));
+    }
+
+
+    private void record(DiffResultCache diffResultCache, DiffResultCache.CacheKey key, byte[] result) throws Exception {
+        DiffResultCache.Recorder recorder = diffResultCache.record(key, new ByteArrayOutputStream());
+        recorder.write(result);
+        recorder.commit();
+    }
+
+}
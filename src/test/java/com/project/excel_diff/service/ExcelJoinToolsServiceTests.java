@@ -0,0 +1,167 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetLayout;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExcelJoinToolsServiceTests {
+
+    private static final Set<String> EXPECTED_RECORDS = new TreeSet<>(List.of(
+            "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"tab2\",\"type\":\"REMOVED\",\"key\":\"B\"}",
+            "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"C\",\"column\":\"C\",\"oldValue\":\"z, \\\"quoted\\\"\",\"newValue\":\"w\"}",
+            "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"tab2\",\"type\":\"ADDED\",\"key\":\"D\"}"));
+
+    @TempDir
+    private Path directory;
+
+
+    @Test
+    void sortedFilesAreMergedOnTheirKey() throws Exception {
+        Path baseline = writeCsv("A,1,x\nB,2,y\nC,3,\"z, \"\"quoted\"\"\"\n");
+        Path target = writeWorkbook(new String[][] {{"A", "1", "x"}, {"C", "3", "w"}, {"D", "4", "v"}});
+
+        assertEquals(EXPECTED_RECORDS, diff(new ExcelToolsProperties(), baseline, target));
+    }
+
+
+    @Test
+    void unsortedFilesAreJoinedThroughPartitionsOnDisk() throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getSpill().setMemoryBudget(DataSize.ofBytes(1));
+        excelToolsProperties.getSpill().setPartitionCount(4);
+        excelToolsProperties.getSpill().setDirectory(directory.resolve("spill"));
+        Path baseline = writeCsv("C,3,\"z, \"\"quoted\"\"\"\r\nA,1,x\r\nB,2,y\r\n");
+        Path target = writeWorkbook(new String[][] {{"D", "4", "v"}, {"A", "1", "x"}, {"C", "3", "w"}});
+
+        assertEquals(EXPECTED_RECORDS, diff(excelToolsProperties, baseline, target));
+    }
+
+
+    @Test
+    void csvFilesAreReadInChunksWhetherMappedOrGzipped() throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getCsv().setChunkSize(DataSize.ofBytes(8));
+        Path baseline = writeCsv("\uFEFFA,1,x\nB,2,y\nC,3,\"z, \"\"quoted\"\"\"\n");
+        Path target = writeGzip("A,1,x\r\nC,3,\"w\nv\"\r\nD,4,v");
+
+        assertEquals(new TreeSet<>(List.of(
+                             "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"target.csv\",\"type\":\"REMOVED\",\"key\":\"B\"}",
+                             "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"target.csv\",\"type\":\"CHANGED\",\"key\":\"C\",\"column\":\"C\",\"oldValue\":\"z, \\\"quoted\\\"\",\"newValue\":\"w\\nv\"}",
+                             "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"target.csv\",\"type\":\"ADDED\",\"key\":\"D\"}")),
+                     diff(excelToolsProperties, baseline, new ExcelJoinToolsService.SheetSource(target, "target.csv.gz", null)));
+    }
+
+
+    @Test
+    void duplicatedKeysAreReportedOnEachSideInMemoryAndThroughPartitions() throws Exception {
+        ExcelToolsProperties partitioned = new ExcelToolsProperties();
+        partitioned.getSpill().setMemoryBudget(DataSize.ofBytes(1));
+        partitioned.getSpill().setPartitionCount(4);
+        partitioned.getSpill().setDirectory(directory.resolve("spill"));
+        Path baseline = writeCsv("A,1\nB,2\nB,3\n");
+        Path target = writeWorkbook(new String[][] {{"A", "4"}, {"A", "5"}, {"B", "3"}});
+
+        // The last row of a key is compared on each side, like in the other engines
+        Set<String> expectedRecords = new TreeSet<>(List.of(
+                "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"A\",\"column\":\"B\",\"oldValue\":\"1\",\"newValue\":\"5\"}",
+                "{\"type\":\"DUPLICATE\",\"key\":\"B\",\"sheet\":\"baseline.csv\",\"rows\":[2,3]}",
+                "{\"type\":\"DUPLICATE\",\"key\":\"A\",\"sheet\":\"tab2\",\"rows\":[1,2]}"));
+        assertEquals(expectedRecords, diff(new ExcelToolsProperties(), baseline, target));
+        assertEquals(expectedRecords, diff(partitioned, baseline, target));
+    }
+
+
+    @Test
+    void headerRowsAreSkippedByRowNumberWhenBlankRowsAreMissing() throws Exception {
+        Path baseline = writeCsv("Liste des comptes\nClé,Valeur\nA,1\nB,2\n");
+        // The blank first row of the workbook is not written in the sheet
+        Path target = writeWorkbook(new String[][] {null, {"Clé", "Valeur"}, {"A", "1"}, {"B", "3"}});
+
+        assertEquals(new TreeSet<>(List.of(
+                             "{\"previousSheet\":\"baseline.csv\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"B\",\"column\":\"B\",\"oldValue\":\"2\",\"newValue\":\"3\"}")),
+                     diff(new ExcelToolsProperties(),
+                          baseline,
+                          new ExcelJoinToolsService.SheetSource(target, "target.xlsx", "tab2"),
+                          new SheetLayout(List.of(0), 2, List.of())));
+    }
+
+
+    private Set<String> diff(ExcelToolsProperties excelToolsProperties, Path baseline, Path target) throws Exception {
+        return diff(excelToolsProperties, baseline, new ExcelJoinToolsService.SheetSource(target, "target.xlsx", "tab2"));
+    }
+
+
+    private Set<String> diff(ExcelToolsProperties excelToolsProperties, Path baseline, ExcelJoinToolsService.SheetSource target) throws Exception {
+        return diff(excelToolsProperties, baseline, target, SheetLayout.DEFAULT);
+    }
+
+
+    private Set<String> diff(ExcelToolsProperties excelToolsProperties,
+                             Path baseline,
+                             ExcelJoinToolsService.SheetSource target,
+                             SheetLayout layout) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(new ObjectMapper(), output)) {
+            new ExcelJoinToolsService(excelToolsProperties, new SheetReaders(excelToolsProperties, ForkJoinPool.commonPool())).findDifferencesBetweenFiles(
+                    new ExcelJoinToolsService.SheetSource(baseline, "baseline.csv", null),
+                    target,
+                    layout,
+                    recordWriter);
+        }
+        return new TreeSet<>(List.of(output.toString(StandardCharsets.UTF_8).split("\n")));
+    }
+
+
+    private Path writeCsv(String content) throws Exception {
+        return Files.writeString(directory.resolve("baseline.csv"), content);
+    }
+
+
+    private Path writeGzip(String content) throws Exception {
+        Path file = directory.resolve("target.csv.gz");
+        try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(file))) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+
+    private Path writeWorkbook(String[][] rows) throws Exception {
+        Path file = directory.resolve("target.xlsx");
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); OutputStream outputStream = Files.newOutputStream(file)) {
+            workbook.createSheet("tab1");
+            Sheet sheet = workbook.createSheet("tab2");
+            for (int rowIndex = 0; rowIndex < rows.length; rowIndex++) {
+                if (rows[rowIndex] == null) {
+                    continue;
+                }
+                Row row = sheet.createRow(rowIndex);
+                for (int cellIndex = 0; cellIndex < rows[rowIndex].length; cellIndex++) {
+                    row.createCell(cellIndex).setCellValue(rows[rowIndex][cellIndex]);
+                }
+            }
+            workbook.write(outputStream);
+        }
+        return file;
+    }
+
+}
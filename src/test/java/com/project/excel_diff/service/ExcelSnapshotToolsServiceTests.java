@@ -0,0 +1,95 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.SheetSnapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExcelSnapshotToolsServiceTests {
+
+    @TempDir
+    private Path directory;
+
+
+    @Test
+    void sheetIsComparedWithAStoredSnapshotAndKeptAsTheNextOne() throws Exception {
+        ObjectMapper objectMapper = JsonMapper.builder().findAndAddModules().build();
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getSnapshots().setDirectory(directory.resolve("snapshots"));
+        SheetSnapshotStore sheetSnapshotStore = new SheetSnapshotStore(excelToolsProperties, objectMapper);
+        ExcelSnapshotToolsService excelSnapshotToolsService = new ExcelSnapshotToolsService(sheetSnapshotStore, new SheetReaders(excelToolsProperties, ForkJoinPool.commonPool()));
+
+        SheetSnapshot baseline = excelSnapshotToolsService.createSnapshot(
+                new ExcelJoinToolsService.SheetSource(writeCsv("week1.csv", "Clé,Valeur\nA,1\nB,2\nC,3\n"), "week1.csv", null),
+                new SheetLayout(List.of(0), 1, List.of()));
+        assertEquals(baseline, sheetSnapshotStore.getSnapshot(baseline.snapshotId()).orElseThrow());
+        assertEquals(3, baseline.rowCount());
+
+        ExcelJoinToolsService.SheetSource week2 = new ExcelJoinToolsService.SheetSource(writeCsv("week2.csv", "Clé,Valeur\nA,1\nC,4\nD,5\n"), "week2.csv", null);
+        String nextSnapshotId = sheetSnapshotStore.newSnapshotId();
+        assertEquals(new TreeSet<>(List.of(
+                        "{\"previousSheet\":\"week1.csv\",\"nextSheet\":\"week2.csv\",\"type\":\"ADDED\",\"key\":\"D\"}",
+                        "{\"previousSheet\":\"week1.csv\",\"nextSheet\":\"week2.csv\",\"type\":\"REMOVED\",\"key\":\"B\"}",
+                        "{\"previousSheet\":\"week1.csv\",\"nextSheet\":\"week2.csv\",\"type\":\"CHANGED\",\"key\":\"C\",\"column\":\"B\",\"oldValue\":\"3\",\"newValue\":\"4\"}")),
+                diff(excelSnapshotToolsService, baseline, week2, nextSnapshotId));
+
+        SheetSnapshot nextSnapshot = sheetSnapshotStore.getSnapshot(nextSnapshotId).orElseThrow();
+        assertEquals(baseline.layout(), nextSnapshot.layout());
+        assertEquals(Set.of(""), diff(excelSnapshotToolsService, nextSnapshot, week2, null));
+    }
+
+
+    @Test
+    void duplicatedKeysOfTheSheetAreReportedAndTheirLastRowIsCompared() throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getSnapshots().setDirectory(directory.resolve("snapshots"));
+        SheetSnapshotStore sheetSnapshotStore = new SheetSnapshotStore(excelToolsProperties, JsonMapper.builder().findAndAddModules().build());
+        ExcelSnapshotToolsService excelSnapshotToolsService = new ExcelSnapshotToolsService(sheetSnapshotStore, new SheetReaders(excelToolsProperties, ForkJoinPool.commonPool()));
+
+        SheetSnapshot baseline = excelSnapshotToolsService.createSnapshot(
+                new ExcelJoinToolsService.SheetSource(writeCsv("week1.csv", "A,1\nB,2\n"), "week1.csv", null),
+                SheetLayout.DEFAULT);
+        ExcelJoinToolsService.SheetSource week2 = new ExcelJoinToolsService.SheetSource(writeCsv("week2.csv", "A,1\nA,3\nB,4\nB,2\nC,5\nC,6\n"), "week2.csv", null);
+
+        // Neither the second row of a key is added nor its key removed, C is added once
+        assertEquals(new TreeSet<>(List.of(
+                        "{\"previousSheet\":\"week1.csv\",\"nextSheet\":\"week2.csv\",\"type\":\"ADDED\",\"key\":\"C\"}",
+                        "{\"previousSheet\":\"week1.csv\",\"nextSheet\":\"week2.csv\",\"type\":\"CHANGED\",\"key\":\"A\",\"column\":\"B\",\"oldValue\":\"1\",\"newValue\":\"3\"}",
+                        "{\"type\":\"DUPLICATE\",\"key\":\"A\",\"sheet\":\"week2.csv\",\"rows\":[1,2]}",
+                        "{\"type\":\"DUPLICATE\",\"key\":\"B\",\"sheet\":\"week2.csv\",\"rows\":[3,4]}",
+                        "{\"type\":\"DUPLICATE\",\"key\":\"C\",\"sheet\":\"week2.csv\",\"rows\":[5,6]}")),
+                diff(excelSnapshotToolsService, baseline, week2, null));
+    }
+
+
+    private Set<String> diff(ExcelSnapshotToolsService excelSnapshotToolsService,
+                             SheetSnapshot baseline,
+                             ExcelJoinToolsService.SheetSource target,
+                             String newSnapshotId) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(new ObjectMapper(), output)) {
+            excelSnapshotToolsService.findDifferencesWithSnapshot(baseline, target, newSnapshotId, recordWriter);
+        }
+        return new TreeSet<>(List.of(output.toString(StandardCharsets.UTF_8).split("\n")));
+    }
+
+
+    private Path writeCsv(String fileName, String content) throws Exception {
+        return Files.writeString(directory.resolve(fileName), content);
+    }
+
+}
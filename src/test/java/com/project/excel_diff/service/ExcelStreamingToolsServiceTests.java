@@ -0,0 +1,179 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.excel_diff.config.ExcelToolsProperties;
+import com.project.excel_diff.model.SheetLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+class ExcelStreamingToolsServiceTests {
+
+    @Autowired
+    private ExcelStreamingToolsService excelStreamingToolsService;
+
+
+    @Test
+    void findDifferencesBetweenSheetsHighlightsAddedRemovedAndChangedRows() throws Exception {
+        try (Workbook result = diff(excelStreamingToolsService, createWorkbook())) {
+            assertDifferencesHighlighted(result);
+        }
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsSpillsRowsBeyondTheMemoryBudget(@TempDir Path spillDirectory) throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getSpill().setMemoryBudget(DataSize.ofBytes(1));
+        excelToolsProperties.getSpill().setPartitionCount(4);
+        excelToolsProperties.getSpill().setDirectory(spillDirectory);
+
+        try (Workbook result = diff(service(excelToolsProperties), createWorkbook())) {
+            assertDifferencesHighlighted(result);
+        }
+        try (Stream<Path> spilledFiles = Files.list(spillDirectory)) {
+            assertEquals(0, spilledFiles.count());
+        }
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsKeepsNumbersAndComparesThemWithinTheTolerance() throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getComparison().setNumericTolerance(0.01);
+
+        try (Workbook result = diff(service(excelToolsProperties), createNumericWorkbook())) {
+            Sheet nextSheet = result.getSheetAt(1);
+            assertEquals(CellType.NUMERIC, nextSheet.getRow(0).getCell(1).getCellType());
+            assertEquals(10.004, nextSheet.getRow(0).getCell(1).getNumericCellValue());
+            // The last row of a duplicated key is compared, both rows are labeled
+            assertEquals(21.0, nextSheet.getRow(1).getCell(1).getNumericCellValue());
+            assertEquals("22 -> Cellule modifiée", nextSheet.getRow(2).getCell(1).getStringCellValue());
+            assertEquals("2 -> Clé dupliquée", nextSheet.getRow(1).getCell(0).getStringCellValue());
+            assertEquals("2 -> Clé dupliquée", nextSheet.getRow(2).getCell(0).getStringCellValue());
+            assertEquals("3 -> Rangée ajoutée", nextSheet.getRow(3).getCell(0).getStringCellValue());
+        }
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsReportsDuplicatedKeysInMemoryAndWhenSpilled(@TempDir Path spillDirectory) throws Exception {
+        ExcelToolsProperties excelToolsProperties = new ExcelToolsProperties();
+        excelToolsProperties.getComparison().setNumericTolerance(0.01);
+        ExcelToolsProperties spilling = new ExcelToolsProperties();
+        spilling.getComparison().setNumericTolerance(0.01);
+        spilling.getSpill().setMemoryBudget(DataSize.ofBytes(1));
+        spilling.getSpill().setPartitionCount(4);
+        spilling.getSpill().setDirectory(spillDirectory);
+
+        Set<String> expectedRecords = new TreeSet<>(List.of(
+                "{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"2\",\"column\":\"B\",\"oldValue\":\"20\",\"newValue\":\"22\"}",
+                "{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"ADDED\",\"key\":\"3\"}",
+                "{\"type\":\"DUPLICATE\",\"key\":\"2\",\"sheet\":\"tab2\",\"rows\":[2,3]}"));
+        assertEquals(expectedRecords, diffAsRecords(service(excelToolsProperties), createNumericWorkbook()));
+        assertEquals(expectedRecords, diffAsRecords(service(spilling), createNumericWorkbook()));
+    }
+
+
+    private Workbook createWorkbook() {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1", "x");
+        addRow(previousSheet, 1, "B", "2", "y");
+        addRow(previousSheet, 2, "C", "3", "z");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "1", "x");
+        addRow(nextSheet, 1, "C", "3", "w");
+        addRow(nextSheet, 2, "D", "4", "v");
+        return workbook;
+    }
+
+
+    private Workbook createNumericWorkbook() {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, 1.0, 10.0, "x");
+        addRow(previousSheet, 1, 2.0, 20.0, "y");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, 1.0, 10.004, "x");
+        addRow(nextSheet, 1, 2.0, 21.0, "y");
+        addRow(nextSheet, 2, 2.0, 22.0, "y");
+        addRow(nextSheet, 3, 3.0, 30.0, "z");
+        return workbook;
+    }
+
+
+    private void assertDifferencesHighlighted(Workbook result) {
+        assertEquals("A", result.getSheetAt(0).getRow(0).getCell(0).getStringCellValue());
+        assertEquals("B -> Rangée effacée", result.getSheetAt(0).getRow(1).getCell(0).getStringCellValue());
+        assertEquals("w -> Cellule modifiée", result.getSheetAt(1).getRow(1).getCell(2).getStringCellValue());
+        assertEquals("3", result.getSheetAt(1).getRow(1).getCell(1).getStringCellValue());
+        assertEquals("D -> Rangée ajoutée", result.getSheetAt(1).getRow(2).getCell(0).getStringCellValue());
+    }
+
+
+    private ExcelStreamingToolsService service(ExcelToolsProperties excelToolsProperties) {
+        return new ExcelStreamingToolsService(excelToolsProperties,
+                new DiffMetrics(new SimpleMeterRegistry(), new DiffResultCache(excelToolsProperties)));
+    }
+
+
+    private Workbook diff(ExcelStreamingToolsService service, Workbook workbook) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        service.findDifferencesBetweenSheets(upload(workbook), output);
+        return new XSSFWorkbook(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+
+    private Set<String> diffAsRecords(ExcelStreamingToolsService service, Workbook workbook) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(new ObjectMapper(), output)) {
+            service.findDifferencesAsRecords(upload(workbook), SheetLayout.DEFAULT, recordWriter);
+        }
+        return new TreeSet<>(List.of(output.toString(StandardCharsets.UTF_8).split("\n")));
+    }
+
+
+    private MockMultipartFile upload(Workbook workbook) throws Exception {
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        workbook.write(upload);
+        workbook.close();
+        return new MockMultipartFile("file", "input.xlsx", null, upload.toByteArray());
+    }
+
+
+    // Strings and numbers, as typed in a sheet
+    private void addRow(Sheet sheet, int rowIndex, Object... values) {
+        Row row = sheet.createRow(rowIndex);
+        for (int cellIndex = 0; cellIndex < values.length; cellIndex++) {
+            if (values[cellIndex] instanceof Double number) {
+                row.createCell(cellIndex).setCellValue(number);
+            } else {
+                row.createCell(cellIndex).setCellValue((String) values[cellIndex]);
+            }
+        }
+    }
+
+}
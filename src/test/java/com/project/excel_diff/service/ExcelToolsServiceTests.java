@@ -0,0 +1,335 @@
+package com.project.excel_diff.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.excel_diff.model.CellNormalizer;
+import com.project.excel_diff.model.RowKey;
+import com.project.excel_diff.model.SheetData;
+import com.project.excel_diff.model.SheetDifferences;
+import com.project.excel_diff.model.SheetLayout;
+import com.project.excel_diff.model.ValueDictionary;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class ExcelToolsServiceTests {
+
+    @Autowired
+    private ExcelToolsService excelToolsService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+
+    @Test
+    void findDifferencesBetweenSheetsHighlightsAddedRemovedAndChangedRows() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1", "x");
+        addRow(previousSheet, 1, "B", "2", "y");
+        addRow(previousSheet, 2, "C", "3", "z");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "1", "x");
+        addRow(nextSheet, 1, "C", "3", "w");
+        addRow(nextSheet, 2, "D", "4", "v");
+
+        try (Workbook result = diff(workbook)) {
+            assertEquals("A", result.getSheetAt(0).getRow(0).getCell(0).getStringCellValue());
+            assertEquals("B -> Rangée effacée", result.getSheetAt(0).getRow(1).getCell(0).getStringCellValue());
+            assertEquals("w -> Cellule modifiée", result.getSheetAt(1).getRow(1).getCell(2).getStringCellValue());
+            assertEquals("3", result.getSheetAt(1).getRow(1).getCell(1).getStringCellValue());
+            assertEquals("D -> Rangée ajoutée", result.getSheetAt(1).getRow(2).getCell(0).getStringCellValue());
+        }
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsComparesTypedValuesAsDisplayed() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Row previousRow = workbook.createSheet("tab1").createRow(0);
+        previousRow.createCell(0).setCellValue("A");
+        previousRow.createCell(1).setCellValue(1);
+        previousRow.createCell(2).setCellValue(2.5);
+        previousRow.createCell(3).setCellValue(true);
+        Row nextRow = workbook.createSheet("tab2").createRow(0);
+        nextRow.createCell(0).setCellValue("A");
+        nextRow.createCell(1).setCellValue("1");
+        nextRow.createCell(2).setCellValue(2.75);
+        nextRow.createCell(3).setCellValue(true);
+        nextRow.createCell(4).setCellValue("");
+
+        try (Workbook result = diff(workbook)) {
+            Row resultRow = result.getSheetAt(1).getRow(0);
+            assertEquals("1", resultRow.getCell(1).getStringCellValue());
+            assertEquals("2.75 -> Cellule modifiée", resultRow.getCell(2).getStringCellValue());
+            assertEquals(true, resultRow.getCell(3).getBooleanCellValue());
+            assertEquals("", resultRow.getCell(4).getStringCellValue());
+        }
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsWritesOneLinePerDifference() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1", "x");
+        addRow(previousSheet, 1, "B", "2", "y");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "1", "w");
+        addRow(nextSheet, 1, "D", "4", "v");
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        workbook.write(upload);
+        workbook.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, output)) {
+            excelToolsService.findDifferencesAsRecords(new ByteArrayInputStream(upload.toByteArray()), SheetLayout.DEFAULT, recordWriter);
+        }
+
+        String[] records = output.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(3, records.length);
+        assertEquals("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"ADDED\",\"key\":\"D\"}", records[0]);
+        assertEquals("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"REMOVED\",\"key\":\"B\"}", records[1]);
+        assertEquals("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"A\",\"column\":\"C\",\"oldValue\":\"x\",\"newValue\":\"w\"}", records[2]);
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsHighlightsTheComparedRowOfADuplicatedKey() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "1");
+        addRow(nextSheet, 1, "A", "2");
+
+        // The last row of the key is compared, the change is highlighted on that row and not on the first one
+        try (Workbook result = diff(workbook)) {
+            assertEquals("1", result.getSheetAt(1).getRow(0).getCell(1).getStringCellValue());
+            assertEquals("2 -> Cellule modifiée", result.getSheetAt(1).getRow(1).getCell(1).getStringCellValue());
+            assertEquals("A -> Clé dupliquée", result.getSheetAt(1).getRow(0).getCell(0).getStringCellValue());
+            assertEquals("A -> Clé dupliquée", result.getSheetAt(1).getRow(1).getCell(0).getStringCellValue());
+        }
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsJoinsRowsOnCompositeKeysAndReportsDuplicates() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "Compte", "Devise", "Montant", "Commentaire");
+        addRow(previousSheet, 1, "A", "EUR", "1", "x");
+        addRow(previousSheet, 2, "A", "USD", "2", "y");
+        addRow(previousSheet, 3, "A", "USD", "3", "z");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "Account", "Currency", "Amount", "Comment");
+        addRow(nextSheet, 1, "A", "EUR", "1", "w");
+        addRow(nextSheet, 2, "A", "USD", "4", "y");
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        workbook.write(upload);
+        workbook.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, output)) {
+            SheetLayout layout = new SheetLayout(List.of(0, 1), 1, List.of(3));
+            excelToolsService.findDifferencesAsRecords(new ByteArrayInputStream(upload.toByteArray()), layout, recordWriter);
+        }
+
+        // The last row of a duplicated key is the one compared
+        String[] records = output.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, records.length);
+        assertEquals("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"A | USD\",\"column\":\"C\",\"oldValue\":\"3\",\"newValue\":\"4\"}", records[0]);
+        assertEquals("{\"type\":\"DUPLICATE\",\"key\":\"A | USD\",\"sheet\":\"tab1\",\"rows\":[3,4]}", records[1]);
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsAlignsAnInsertedColumnByContent() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1", "x");
+        addRow(previousSheet, 1, "B", "2", "y");
+        addRow(previousSheet, 2, "C", "3", "z");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "new", "1", "x");
+        addRow(nextSheet, 1, "B", "new", "2", "w");
+        addRow(nextSheet, 2, "C", "new", "3", "z");
+
+        // Only the cell that changed is reported, not every cell on the right of the inserted column
+        assertEquals(List.of("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"COLUMN_ADDED\",\"column\":\"B\"}",
+                             "{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"B\",\"column\":\"D\",\"oldValue\":\"y\",\"newValue\":\"w\"}"),
+                     records(workbook, SheetLayout.DEFAULT));
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsKeepsTheColumnsOfSheetsWithTheSameColumnCount() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "x", "u");
+        addRow(previousSheet, 1, "B", "y", "v");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "u", "x");
+        addRow(nextSheet, 1, "B", "v", "y");
+
+        // Without headers, columns whose values changed are not taken for moved columns
+        List<String> records = records(workbook, SheetLayout.DEFAULT);
+        assertEquals(4, records.size());
+        assertEquals("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"A\",\"column\":\"B\",\"oldValue\":\"x\",\"newValue\":\"u\"}", records.get(0));
+        assertTrue(records.stream().allMatch(record -> record.contains("\"type\":\"CHANGED\"")));
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsLabelsAColumnInACommentWithoutHeaderRows() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "A", "1", "x");
+        addRow(previousSheet, 1, "B", "2", "y");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "A", "new", "1", "x");
+        addRow(nextSheet, 1, "B", "new", "2", "y");
+
+        // The first row holds data, its value is left as is
+        try (Workbook result = diff(workbook)) {
+            Cell cell = result.getSheetAt(1).getRow(0).getCell(1);
+            assertEquals("new", cell.getStringCellValue());
+            assertEquals("Colonne ajoutée", cell.getCellComment().getString().getString());
+        }
+    }
+
+
+    @Test
+    void findDifferencesAsRecordsAlignsRemovedAndMovedColumnsByHeader() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addRow(previousSheet, 0, "Clé", "Nom", "Ville", "Pays");
+        addRow(previousSheet, 1, "A", "Anne", "Lyon", "France");
+        addRow(previousSheet, 2, "B", "Bob", "Genève", "Suisse");
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addRow(nextSheet, 0, "Clé", "Ville", "Nom");
+        addRow(nextSheet, 1, "A", "Lyon", "Anne");
+        addRow(nextSheet, 2, "B", "Berne", "Bob");
+
+        assertEquals(List.of("{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"COLUMN_REMOVED\",\"previousColumn\":\"D\"}",
+                             "{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"COLUMN_MOVED\",\"column\":\"B\",\"previousColumn\":\"C\"}",
+                             "{\"previousSheet\":\"tab1\",\"nextSheet\":\"tab2\",\"type\":\"CHANGED\",\"key\":\"B\",\"column\":\"B\",\"oldValue\":\"Genève\",\"newValue\":\"Berne\"}"),
+                     records(workbook, new SheetLayout(List.of(0), 1, List.of())));
+    }
+
+
+    @Test
+    void compareSheetsComparesNumbersAndDatesWithinTheirTolerance() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        CellStyle dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("dd/mm/yyyy"));
+        Sheet previousSheet = workbook.createSheet("tab1");
+        addTypedRow(previousSheet, 0, "A", 1.0, LocalDateTime.of(2024, 1, 31, 0, 0), dateStyle);
+        addTypedRow(previousSheet, 1, "B", 2.0, LocalDateTime.of(2024, 1, 31, 0, 0), dateStyle);
+        Sheet nextSheet = workbook.createSheet("tab2");
+        addTypedRow(nextSheet, 0, "A", 1.004, LocalDateTime.of(2024, 1, 31, 0, 30), dateStyle);
+        addTypedRow(nextSheet, 1, "B", 2.5, LocalDateTime.of(2024, 2, 2, 0, 0), dateStyle);
+
+        ValueDictionary dictionary = new ValueDictionary();
+        CellNormalizer normalizer = new CellNormalizer(0.01, Duration.ofHours(1));
+        SheetData previousSheetData = new SheetData(dictionary, SheetLayout.DEFAULT, normalizer);
+        SheetData nextSheetData = new SheetData(dictionary, SheetLayout.DEFAULT, normalizer);
+        previousSheet.forEach(previousSheetData::addRow);
+        nextSheet.forEach(nextSheetData::addRow);
+        workbook.close();
+
+        SheetDifferences sheetDifferences = excelToolsService.compareSheets(previousSheetData, nextSheetData);
+        assertEquals(1, sheetDifferences.changedColumns().size());
+        RowKey changedKey = sheetDifferences.changedColumns().keySet().iterator().next();
+        assertEquals("B", nextSheetData.keyAsString(changedKey));
+        assertEquals(List.of(1, 2), sheetDifferences.changedColumns().get(changedKey));
+        assertEquals("2024-02-02", nextSheetData.valueAsString(nextSheetData.rowPosition(changedKey), 2));
+    }
+
+
+    @Test
+    void findDifferencesBetweenSheetsSharesHighlightStylesAcrossSheets() throws Exception {
+        Workbook workbook = new XSSFWorkbook();
+        CellStyle dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("dd/mm/yyyy"));
+        List<String> keys = List.of("A", "B", "C", "D");
+        for (int sheetIndex = 0; sheetIndex < keys.size(); sheetIndex++) {
+            Sheet sheet = workbook.createSheet("tab" + (sheetIndex + 1));
+            for (int rowIndex = 0; rowIndex <= sheetIndex; rowIndex++) {
+                addTypedRow(sheet, rowIndex, keys.get(rowIndex), rowIndex, LocalDateTime.of(2024, 1, 31, 0, 0), dateStyle);
+            }
+        }
+
+        try (Workbook result = diff(workbook)) {
+            // The two original styles, each combined once with the color of added rows
+            assertEquals(4, result.getNumCellStyles());
+            Cell dateCell = result.getSheetAt(3).getRow(3).getCell(2);
+            assertEquals("D -> Rangée ajoutée", result.getSheetAt(3).getRow(3).getCell(0).getStringCellValue());
+            assertEquals("dd/mm/yyyy", dateCell.getCellStyle().getDataFormatString());
+            assertEquals(IndexedColors.LIGHT_GREEN.getIndex(), dateCell.getCellStyle().getFillForegroundColor());
+            assertEquals(LocalDateTime.of(2024, 1, 31, 0, 0), dateCell.getLocalDateTimeCellValue());
+        }
+    }
+
+
+    private List<String> records(Workbook workbook, SheetLayout layout) throws Exception {
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        workbook.write(upload);
+        workbook.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DiffRecordWriter recordWriter = new DiffRecordWriter(objectMapper, output)) {
+            excelToolsService.findDifferencesAsRecords(new ByteArrayInputStream(upload.toByteArray()), layout, recordWriter);
+        }
+        return List.of(output.toString(StandardCharsets.UTF_8).split("\n"));
+    }
+
+
+    private Workbook diff(Workbook workbook) throws Exception {
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        workbook.write(upload);
+        workbook.close();
+        MockMultipartFile file = new MockMultipartFile("file", "input.xlsx", null, upload.toByteArray());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        excelToolsService.findDifferencesBetweenSheets(file, output);
+        return new XSSFWorkbook(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+
+    private void addTypedRow(Sheet sheet, int rowIndex, String key, double number, LocalDateTime date, CellStyle dateStyle) {
+        Row row = sheet.createRow(rowIndex);
+        row.createCell(0).setCellValue(key);
+        row.createCell(1).setCellValue(number);
+        Cell dateCell = row.createCell(2);
+        dateCell.setCellValue(date);
+        dateCell.setCellStyle(dateStyle);
+    }
+
+
+    private void addRow(Sheet sheet, int rowIndex, String... values) {
+        Row row = sheet.createRow(rowIndex);
+        for (int cellIndex = 0; cellIndex < values.length; cellIndex++) {
+            row.createCell(cellIndex).setCellValue(values[cellIndex]);
+        }
+    }
+
+}